@@ -15,6 +15,7 @@
  */
 package v6.java.preverifier;
 
+import java.io.IOException;
 
 /**
  * Abstract superclass of the preverification policies.
@@ -46,4 +47,36 @@ public abstract class AbstractPreverificationPolicy implements
     public boolean areNativeMethodsAllowed() {
         return false;
     }
+
+    /**
+     * Return the name of the bundled platform hierarchy of the configuration
+     * the policy is meant for, e.g. {@link PlatformHierarchy#CLDC_1_1}, or
+     * <code>null</code> if there is none.
+     * 
+     * @return
+     */
+    public String getConfigurationName() {
+        return null;
+    }
+
+    /**
+     * Return the bundled platform hierarchy of the configuration the policy
+     * is meant for combined with the specified bundled profile, e.g.
+     * {@link PlatformHierarchy#MIDP_2_0}. The result can be passed to the
+     * preverifiers instead of putting the platform API archives on the
+     * classpath.
+     * 
+     * @param profileName the profile or <code>null</code> for the
+     *            configuration alone
+     * @return the hierarchy or <code>null</code> if the policy is not meant
+     *         for a standard configuration
+     * @throws IOException if the hierarchy cannot be read
+     */
+    public PlatformHierarchy getPlatformHierarchy(String profileName)
+            throws IOException {
+        String configurationName = getConfigurationName();
+
+        return (configurationName == null) ? null : PlatformHierarchy
+                .getStandard(configurationName, profileName);
+    }
 }
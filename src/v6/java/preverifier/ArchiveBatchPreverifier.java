@@ -0,0 +1,331 @@
+/**
+ * Copyright (c) 2010 Vít Šesták
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package v6.java.preverifier;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A preverifier of several archive files sharing the same classpath. All the
+ * archives are preverified using a single class loader and the results of
+ * the type validation are shared among all their classes. The classes of all
+ * the archives are preverified by a single pool of worker threads, so the
+ * work is spread evenly no matter how the classes are split among the
+ * archives.
+ * <p>
+ * Each archive is written by its own thread in the same way as by
+ * {@link ArchivePreverifier}. The listener receives the callbacks of a single
+ * archive in order, but the callbacks of different archives may come from
+ * different threads at the same time.
+ * </p>
+ */
+public class ArchiveBatchPreverifier {
+
+    /** An archive to be preverified. */
+    private static class BatchEntry {
+        private File archive;
+        private File outputFile;
+
+        /**
+         * Construct a new batch entry.
+         *
+         * @param archive
+         * @param outputFile
+         */
+        BatchEntry(File archive, File outputFile) {
+            this.archive = archive;
+            this.outputFile = outputFile;
+        }
+    }
+
+    private IPreverificationPolicy preverificationPolicy;
+    private IArchivePreverificationListener listener;
+    private int threadCount;
+    private ArchiveOutputOptions outputOptions;
+    private long memoryBudget;
+    private PlatformHierarchy platformHierarchy;
+    private MissingClassReport missingClassReport;
+    private File indexDirectory;
+    private List<BatchEntry> entries;
+
+    /**
+     * Create a new batch preverifier with the specified policy and listener.
+     *
+     * @param preverificationPolicy
+     * @param listener
+     */
+    public ArchiveBatchPreverifier(
+            IPreverificationPolicy preverificationPolicy,
+            IArchivePreverificationListener listener) {
+        super();
+
+        this.preverificationPolicy = preverificationPolicy;
+        this.listener = listener;
+        this.threadCount = Runtime.getRuntime().availableProcessors();
+        this.outputOptions = new ArchiveOutputOptions();
+        this.entries = new ArrayList<BatchEntry>();
+    }
+
+    /**
+     * Add the archive to be preverified into the specified output file.
+     *
+     * @param archive
+     * @param outputFile
+     */
+    public void addArchive(File archive, File outputFile) {
+        if ((archive == null) || (!archive.exists())) {
+            throw new IllegalArgumentException(
+                    "Archive must not be null or does not exist");
+        }
+        if (outputFile == null) {
+            throw new IllegalArgumentException(
+                    "Output file must not be null");
+        }
+
+        entries.add(new BatchEntry(archive, outputFile));
+    }
+
+    /**
+     * Return the number of threads used for preverifying the classes.
+     *
+     * @return
+     */
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     * Set the number of threads used for preverifying the classes. It
+     * defaults to the number of available processors.
+     *
+     * @param threadCount
+     * @throws IllegalArgumentException if threadCount is less than 1
+     */
+    public void setThreadCount(int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException(
+                    "Thread count must be at least 1");
+        }
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * Return the number of bytes of class data that may be held in memory at
+     * once by all the archives, or zero if not limited.
+     *
+     * @return
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Set the number of bytes of class data that may be held in memory at
+     * once by all the archives. The value of zero (the default) means no
+     * limit.
+     *
+     * @param memoryBudget
+     * @throws IllegalArgumentException if memoryBudget is negative
+     * @see ArchivePreverifier#setMemoryBudget(long)
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        if (memoryBudget < 0) {
+            throw new IllegalArgumentException(
+                    "Memory budget must not be negative");
+        }
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Return the platform hierarchy the platform types are resolved from or
+     * <code>null</code> if they are resolved from the classpath.
+     *
+     * @return
+     */
+    public PlatformHierarchy getPlatformHierarchy() {
+        return platformHierarchy;
+    }
+
+    /**
+     * Set the platform hierarchy the platform types are resolved from instead
+     * of the platform API archives on the classpath.
+     *
+     * @param platformHierarchy the platform or <code>null</code> (the
+     *            default)
+     * @see ClassPreverifier#setPlatformHierarchy(PlatformHierarchy)
+     */
+    public void setPlatformHierarchy(PlatformHierarchy platformHierarchy) {
+        this.platformHierarchy = platformHierarchy;
+    }
+
+    /**
+     * Return the report the missing classes are recorded into or
+     * <code>null</code> if they are not recorded.
+     *
+     * @return
+     */
+    public MissingClassReport getMissingClassReport() {
+        return missingClassReport;
+    }
+
+    /**
+     * Set the report the classes missing from the classpath are recorded
+     * into.
+     *
+     * @param missingClassReport the report or <code>null</code> (the
+     *            default)
+     * @see ClassPreverifier#setMissingClassReport(MissingClassReport)
+     */
+    public void setMissingClassReport(MissingClassReport missingClassReport) {
+        this.missingClassReport = missingClassReport;
+    }
+
+    /**
+     * Return the directory the indexes of the classpath archives are stored
+     * in or <code>null</code> if they are not stored.
+     *
+     * @return
+     */
+    public File getIndexDirectory() {
+        return indexDirectory;
+    }
+
+    /**
+     * Set the directory the indexes of the classpath archives are stored in.
+     *
+     * @param indexDirectory the directory or <code>null</code> (the default)
+     * @see ClassPreverifier#setIndexDirectory(File)
+     */
+    public void setIndexDirectory(File indexDirectory) {
+        this.indexDirectory = indexDirectory;
+    }
+
+    /**
+     * Return the options controlling how the output archives are written.
+     *
+     * @return
+     */
+    public ArchiveOutputOptions getOutputOptions() {
+        return outputOptions;
+    }
+
+    /**
+     * Set the options controlling how the output archives are written.
+     *
+     * @param outputOptions
+     * @throws IllegalArgumentException if outputOptions is <code>null</code>
+     */
+    public void setOutputOptions(ArchiveOutputOptions outputOptions) {
+        if (outputOptions == null) {
+            throw new IllegalArgumentException(
+                    "Output options must not be null");
+        }
+        this.outputOptions = outputOptions;
+    }
+
+    /**
+     * Preverify all the added archives using the specified classpath. If some
+     * of the archives fail, the others are still preverified and the first
+     * failure is thrown afterwards.
+     *
+     * @param classpath
+     * @throws IOException
+     */
+    public void preverify(URL[] classpath) throws IOException {
+        final ClassLoader classLoader = new URLClassLoader(classpath, Thread
+                .currentThread().getContextClassLoader());
+        ClassPreverifier classPreverifier = new ClassPreverifier(
+                preverificationPolicy);
+        classPreverifier.setPlatformHierarchy(platformHierarchy);
+        classPreverifier.setMissingClassReport(missingClassReport);
+        classPreverifier.setIndexDirectory(indexDirectory);
+        final ArchivePreverifier archivePreverifier = new ArchivePreverifier(
+                classPreverifier, listener);
+        archivePreverifier.setThreadCount(threadCount);
+        archivePreverifier.setOutputOptions(outputOptions);
+        archivePreverifier.setMemoryBudget(memoryBudget);
+
+        final ExecutorService workerExecutor = Executors
+                .newFixedThreadPool(threadCount);
+        ExecutorService writerExecutor = Executors.newFixedThreadPool(Math
+                .max(1, Math.min(threadCount, entries.size())));
+
+        try {
+            List<Future<Object>> writers = new ArrayList<Future<Object>>();
+            for (final BatchEntry entry : entries) {
+                writers.add(writerExecutor.submit(new Callable<Object>() {
+                    public Object call() throws IOException {
+                        archivePreverifier.preverify(entry.archive,
+                                entry.outputFile, classLoader, workerExecutor);
+                        return null;
+                    }
+                }));
+            }
+
+            waitForWriters(writers);
+        } finally {
+            writerExecutor.shutdownNow();
+            workerExecutor.shutdownNow();
+
+            // Class loaders are closeable since Java 7
+            if (classLoader instanceof Closeable) {
+                ((Closeable) classLoader).close();
+            }
+        }
+    }
+
+    /**
+     * Wait for all the archive writers to finish, throwing the first failure.
+     *
+     * @param writers
+     * @throws IOException
+     */
+    private void waitForWriters(List<Future<Object>> writers)
+            throws IOException {
+        Throwable failure = null;
+
+        for (Future<Object> writer : writers) {
+            try {
+                writer.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(
+                        "Interrupted while preverifying archives");
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                }
+            }
+        }
+
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            IOException ioException = new IOException(
+                    "Unable to preverify archives");
+            ioException.initCause(failure);
+            throw ioException;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/**
+ * Copyright (c) 2010 Vít Šesták
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package v6.java.preverifier;
+
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Options controlling how the output archive is written. By default, all the
+ * entries are deflated with the default compression level, they keep the
+ * times of the input entries and they are written in the order of the input
+ * archive.
+ * <p>
+ * An output archive is byte-for-byte reproducible if the fixed time is set
+ * and the input archive contains the same entries. With the canonical order,
+ * the order of the input entries does not matter either.
+ * </p>
+ */
+public class ArchiveOutputOptions {
+
+    /** The value of the fixed time meaning that the entry times are kept. */
+    public static final long NO_FIXED_TIME = -1;
+
+    private int compressionLevel;
+    private int classMethod;
+    private int resourceMethod;
+    private long fixedTime;
+    private boolean canonicalOrder;
+
+    /**
+     * Construct the default options.
+     */
+    public ArchiveOutputOptions() {
+        super();
+
+        compressionLevel = Deflater.DEFAULT_COMPRESSION;
+        classMethod = ZipEntry.DEFLATED;
+        resourceMethod = ZipEntry.DEFLATED;
+        fixedTime = NO_FIXED_TIME;
+    }
+
+    /**
+     * Return the compression level of the deflated entries.
+     *
+     * @return
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Set the compression level of the deflated entries, from
+     * {@link Deflater#NO_COMPRESSION} to {@link Deflater#BEST_COMPRESSION}
+     * or {@link Deflater#DEFAULT_COMPRESSION} (the default). The resources
+     * already deflated in the input archive are copied as they are only with
+     * the default compression level, otherwise they are deflated again.
+     *
+     * @param compressionLevel
+     * @throws IllegalArgumentException if the level is not valid
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        if ((compressionLevel != Deflater.DEFAULT_COMPRESSION)
+                && ((compressionLevel < Deflater.NO_COMPRESSION)
+                        || (compressionLevel > Deflater.BEST_COMPRESSION))) {
+            throw new IllegalArgumentException("Invalid compression level "
+                    + compressionLevel);
+        }
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * Return the compression method of the class entries.
+     *
+     * @return
+     */
+    public int getClassMethod() {
+        return classMethod;
+    }
+
+    /**
+     * Set the compression method of the class entries, either
+     * {@link ZipEntry#DEFLATED} (the default) or {@link ZipEntry#STORED}.
+     *
+     * @param classMethod
+     * @throws IllegalArgumentException if the method is not valid
+     */
+    public void setClassMethod(int classMethod) {
+        checkMethod(classMethod);
+        this.classMethod = classMethod;
+    }
+
+    /**
+     * Return the compression method of the resource entries.
+     *
+     * @return
+     */
+    public int getResourceMethod() {
+        return resourceMethod;
+    }
+
+    /**
+     * Set the compression method of the resource entries, i.e. all the
+     * entries other than classes, either {@link ZipEntry#DEFLATED} (the
+     * default) or {@link ZipEntry#STORED}.
+     *
+     * @param resourceMethod
+     * @throws IllegalArgumentException if the method is not valid
+     */
+    public void setResourceMethod(int resourceMethod) {
+        checkMethod(resourceMethod);
+        this.resourceMethod = resourceMethod;
+    }
+
+    /**
+     * Return the time of all the entries or {@link #NO_FIXED_TIME} if the
+     * entries keep their times.
+     *
+     * @return
+     */
+    public long getFixedTime() {
+        return fixedTime;
+    }
+
+    /**
+     * Set the time of all the entries in milliseconds since the epoch or
+     * {@link #NO_FIXED_TIME} (the default) to keep the entry times. The fixed
+     * time is stored as its UTC date and time, so the output does not depend
+     * on the time zone it has been written in.
+     *
+     * @param fixedTime
+     * @throws IllegalArgumentException if the time is negative
+     */
+    public void setFixedTime(long fixedTime) {
+        if ((fixedTime < 0) && (fixedTime != NO_FIXED_TIME)) {
+            throw new IllegalArgumentException("Invalid fixed time "
+                    + fixedTime);
+        }
+        this.fixedTime = fixedTime;
+    }
+
+    /**
+     * Return a boolean indicating whether the entries are written in the
+     * canonical order.
+     *
+     * @return
+     */
+    public boolean isCanonicalOrder() {
+        return canonicalOrder;
+    }
+
+    /**
+     * Set whether the entries are written in the canonical order rather than
+     * in the order of the input archive. The canonical order starts with the
+     * META-INF directory, the manifest and the other META-INF entries, as
+     * expected by the archive readers, followed by all the other entries,
+     * each group sorted by the names. The order of an archive read from a
+     * stream cannot be changed.
+     *
+     * @param canonicalOrder
+     */
+    public void setCanonicalOrder(boolean canonicalOrder) {
+        this.canonicalOrder = canonicalOrder;
+    }
+
+    /**
+     * Return the compression method of the specified entry.
+     *
+     * @param entryName
+     * @return
+     */
+    int getMethod(String entryName) {
+        return entryName.endsWith(".class") ? classMethod : resourceMethod;
+    }
+
+    /**
+     * Check that the specified compression method is supported.
+     *
+     * @param method
+     * @throws IllegalArgumentException if the method is not valid
+     */
+    private void checkMethod(int method) {
+        if ((method != ZipEntry.STORED) && (method != ZipEntry.DEFLATED)) {
+            throw new IllegalArgumentException("Invalid compression method "
+                    + method);
+        }
+    }
+}
@@ -15,28 +15,153 @@
  */
 package v6.java.preverifier;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Enumeration;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
-import java.util.zip.ZipOutputStream;
+import java.util.zip.ZipInputStream;
 
+import v6.java.preverifier.results.PreverificationError;
 import v6.java.preverifier.results.PreverificationResults;
 
 /**
  * A preverifier implementation for pre-verifying an archive file.
+ * <p>
+ * By default the classes are preverified one by one on the calling thread.
+ * When more threads are requested using {@link #setThreadCount(int)}, class
+ * entries are preverified by a pool of worker threads while the calling thread
+ * remains the only one writing the output archive. The output entries are
+ * always written in the order of the input archive. The listener is always
+ * called on the calling thread: {@link IArchivePreverificationListener#classBegin(ZipFile, ZipEntry)}
+ * and {@link IArchivePreverificationListener#classEnd(ZipFile, ZipEntry, PreverificationResults)}
+ * are both called in the entry order, but the class beginnings may run ahead
+ * of the class endings by a limited number of entries.
+ * </p>
+ * <p>
+ * The archive file is memory-mapped and read through its central directory.
+ * The classes are read directly into exactly sized arrays and the resources
+ * are copied as their already compressed data, without being inflated and
+ * deflated again, unless the {@link ArchiveOutputOptions} require them to be
+ * compressed differently.
+ * </p>
+ * <p>
+ * An archive can also be preverified incrementally, using the previous input
+ * and output archives as a baseline. The unchanged classes are then copied
+ * from the previous output archive instead of being preverified again, while
+ * the listener is still notified of them. See
+ * {@link #preverify(File, File, URL[], File, File)}.
+ * </p>
  * 
  * @author Craig Setera
  */
 public class ArchivePreverifier {
+
+    /**
+     * Number of entries per worker thread that may wait for being written
+     * when preverifying in parallel.
+     */
+    private static final int PENDING_ENTRIES_PER_THREAD = 4;
+
+    private static final String META_INF_DIRECTORY = "META-INF/";
+    private static final String MANIFEST_NAME = "META-INF/MANIFEST.MF";
+
+    /** An entry of the archive file together with its raw description. */
+    private static class SourceEntry {
+        private ZipEntry entry;
+        private ZipArchiveReader.Entry rawEntry;
+
+        /**
+         * Construct a new source entry.
+         * 
+         * @param entry
+         * @param rawEntry the description of the entry as read by the raw
+         *            reader or <code>null</code> if not available
+         */
+        SourceEntry(ZipEntry entry, ZipArchiveReader.Entry rawEntry) {
+            this.entry = entry;
+            this.rawEntry = rawEntry;
+        }
+    }
+
+    /** An entry read from the archive and waiting for being written. */
+    private static class PendingEntry {
+        private ZipEntry entry;
+        private ZipArchiveReader.Entry rawEntry;
+        private ZipArchiveReader rawReader;
+        private Future<PreverificationResults> results;
+        private MemoryBudget budget;
+        private long reservedBytes;
+        private boolean released;
+        private boolean reused;
+
+        /**
+         * Construct a new pending entry.
+         * 
+         * @param entry
+         * @param rawEntry
+         * @param rawReader the reader the raw entry is to be copied from
+         * @param results the results of the class preverification or
+         *            <code>null</code> if the entry is to be copied
+         */
+        PendingEntry(ZipEntry entry, ZipArchiveReader.Entry rawEntry,
+                ZipArchiveReader rawReader,
+                Future<PreverificationResults> results) {
+            this.entry = entry;
+            this.rawEntry = rawEntry;
+            this.rawReader = rawReader;
+            this.results = results;
+        }
+
+        /**
+         * Reserve the memory budget for the preverified class of the entry,
+         * unless the reservations of the entry have been released already.
+         * 
+         * @param bytes
+         */
+        synchronized void reserveOutput(long bytes) {
+            if ((budget != null) && !released) {
+                budget.forceReserve(bytes);
+                reservedBytes += bytes;
+            }
+        }
+
+        /**
+         * Release all the memory budget reserved for the entry. The output
+         * reserved by the worker afterwards is not counted any more.
+         */
+        synchronized void release() {
+            if ((budget != null) && !released) {
+                budget.release(reservedBytes);
+            }
+            released = true;
+        }
+    }
+
     private ClassPreverifier classPreverifier;
     private IArchivePreverificationListener listener;
+    private int threadCount;
+    private ArchiveOutputOptions outputOptions;
+    private MemoryBudget memoryBudget;
 
     /**
      * Create a new archive preverifier with the specified policy and listener.
@@ -46,11 +171,173 @@ public class ArchivePreverifier {
      */
     public ArchivePreverifier(IPreverificationPolicy preverificationPolicy,
             IArchivePreverificationListener listener) {
+        this(new ClassPreverifier(preverificationPolicy), listener);
+    }
+
+    /**
+     * Create a new archive preverifier using the specified class preverifier
+     * and listener.
+     * 
+     * @param classPreverifier
+     * @param listener
+     */
+    ArchivePreverifier(ClassPreverifier classPreverifier,
+            IArchivePreverificationListener listener) {
         super();
 
-        classPreverifier = new ClassPreverifier(preverificationPolicy);
+        this.classPreverifier = classPreverifier;
         this.listener = (listener == null) ? new NullArchivePreverificationListener()
                 : listener;
+        this.threadCount = 1;
+        this.outputOptions = new ArchiveOutputOptions();
+    }
+
+    /**
+     * Return the number of threads used for preverifying the classes.
+     * 
+     * @return
+     */
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     * Set the number of threads used for preverifying the classes. The value
+     * of 1 (the default) means that all the work is done on the calling
+     * thread.
+     * 
+     * @param threadCount
+     * @throws IllegalArgumentException if threadCount is less than 1
+     */
+    public void setThreadCount(int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException(
+                    "Thread count must be at least 1");
+        }
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * Return the number of bytes of class data that may be held in memory at
+     * once when preverifying in parallel, or zero if not limited.
+     * 
+     * @return
+     */
+    public long getMemoryBudget() {
+        return (memoryBudget == null) ? 0 : memoryBudget.getLimit();
+    }
+
+    /**
+     * Set the number of bytes of class data that may be held in memory at
+     * once when preverifying in parallel. Both the input classes waiting for
+     * preverification and the preverified classes waiting for being written
+     * count. When the budget is exhausted, no more classes are read until
+     * enough of them are written. The budget is shared by all the archives
+     * preverified by this preverifier at the same time. The value of zero
+     * (the default) means no limit.
+     * <p>
+     * Note that the budget accounts for the class files only. The results
+     * also hold the class nodes, which take several times more memory, so the
+     * budget should be set well below the memory available.
+     * </p>
+     * 
+     * @param memoryBudget
+     * @throws IllegalArgumentException if memoryBudget is negative
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        if (memoryBudget < 0) {
+            throw new IllegalArgumentException(
+                    "Memory budget must not be negative");
+        }
+        this.memoryBudget = (memoryBudget == 0) ? null : new MemoryBudget(
+                memoryBudget);
+    }
+
+    /**
+     * Return the platform hierarchy the platform types are resolved from or
+     * <code>null</code> if they are resolved from the classpath.
+     * 
+     * @return
+     */
+    public PlatformHierarchy getPlatformHierarchy() {
+        return classPreverifier.getPlatformHierarchy();
+    }
+
+    /**
+     * Set the platform hierarchy the platform types are resolved from instead
+     * of the platform API archives on the classpath.
+     * 
+     * @param platformHierarchy the platform or <code>null</code> (the
+     *            default)
+     * @see ClassPreverifier#setPlatformHierarchy(PlatformHierarchy)
+     */
+    public void setPlatformHierarchy(PlatformHierarchy platformHierarchy) {
+        classPreverifier.setPlatformHierarchy(platformHierarchy);
+    }
+
+    /**
+     * Return the report the missing classes are recorded into or
+     * <code>null</code> if they are not recorded.
+     * 
+     * @return
+     */
+    public MissingClassReport getMissingClassReport() {
+        return classPreverifier.getMissingClassReport();
+    }
+
+    /**
+     * Set the report the classes missing from the classpath are recorded
+     * into.
+     * 
+     * @param missingClassReport the report or <code>null</code> (the
+     *            default)
+     * @see ClassPreverifier#setMissingClassReport(MissingClassReport)
+     */
+    public void setMissingClassReport(MissingClassReport missingClassReport) {
+        classPreverifier.setMissingClassReport(missingClassReport);
+    }
+
+    /**
+     * Return the directory the indexes of the classpath archives are stored
+     * in or <code>null</code> if they are not stored.
+     * 
+     * @return
+     */
+    public File getIndexDirectory() {
+        return classPreverifier.getIndexDirectory();
+    }
+
+    /**
+     * Set the directory the indexes of the classpath archives are stored in.
+     * 
+     * @param indexDirectory the directory or <code>null</code> (the default)
+     * @see ClassPreverifier#setIndexDirectory(File)
+     */
+    public void setIndexDirectory(File indexDirectory) {
+        classPreverifier.setIndexDirectory(indexDirectory);
+    }
+
+    /**
+     * Return the options controlling how the output archive is written.
+     * 
+     * @return
+     */
+    public ArchiveOutputOptions getOutputOptions() {
+        return outputOptions;
+    }
+
+    /**
+     * Set the options controlling how the output archive is written.
+     * 
+     * @param outputOptions
+     * @throws IllegalArgumentException if outputOptions is <code>null</code>
+     */
+    public void setOutputOptions(ArchiveOutputOptions outputOptions) {
+        if (outputOptions == null) {
+            throw new IllegalArgumentException(
+                    "Output options must not be null");
+        }
+        this.outputOptions = outputOptions;
     }
 
     /**
@@ -63,38 +350,203 @@ public class ArchivePreverifier {
      */
     public void preverify(File archive, File outputFile, URL[] classpath)
             throws IOException {
+        preverify(archive, outputFile, classpath, null, null);
+    }
+
+    /**
+     * Preverify the specified archive file using the specified classpath,
+     * reusing the results of the previous preverification. A class is copied
+     * from the previous output archive if its contents are the same as in the
+     * previous input archive and none of its supertypes has changed, i.e. it
+     * has not been added, removed or modified in the archive, and it has not
+     * been modified on the classpath after the previous output archive was
+     * written. All the other classes are preverified. The copied classes are
+     * reported to the listener like the preverified ones, with results
+     * holding the copied class, so a class rejected by the listener is left
+     * out either way.
+     * <p>
+     * The previous archives must have been preverified with the same policy
+     * and they must be kept aside, as the output file must not be the previous
+     * output file. If any of the previous archives does not exist or cannot
+     * be read, all the classes are preverified.
+     * </p>
+     * 
+     * @param archive
+     * @param outputFile
+     * @param classpath
+     * @param previousArchive the previous input archive or <code>null</code>
+     * @param previousOutputFile the previous output archive or
+     *            <code>null</code>
+     * @throws IOException
+     */
+    public void preverify(File archive, File outputFile, URL[] classpath,
+            File previousArchive, File previousOutputFile) throws IOException {
         if ((archive == null) || (!archive.exists())) {
             throw new IllegalArgumentException(
                     "Archive must not be null or does not exist");
         }
+        if ((previousOutputFile != null)
+                && previousOutputFile.getCanonicalFile().equals(
+                        outputFile.getCanonicalFile())) {
+            throw new IllegalArgumentException(
+                    "Output file must not be the previous output file");
+        }
 
         ClassLoader classLoader = new URLClassLoader(classpath, Thread
                 .currentThread().getContextClassLoader());
 
+        try {
+            if (threadCount > 1) {
+                ExecutorService executor = Executors
+                        .newFixedThreadPool(threadCount);
+                try {
+                    preverify(archive, outputFile, previousArchive,
+                            previousOutputFile, classLoader, executor);
+                } finally {
+                    executor.shutdownNow();
+                }
+            } else {
+                preverify(archive, outputFile, previousArchive,
+                        previousOutputFile, classLoader, null);
+            }
+        } finally {
+            // Class loaders are closeable since Java 7
+            if (classLoader instanceof Closeable) {
+                ((Closeable) classLoader).close();
+            }
+        }
+    }
+
+    /**
+     * Preverify the specified archive file using the specified class loader.
+     * The classes are preverified using the specified executor or on the
+     * calling thread if the executor is <code>null</code>.
+     * 
+     * @param archive
+     * @param outputFile
+     * @param classLoader
+     * @param executor
+     * @throws IOException
+     */
+    void preverify(File archive, File outputFile, ClassLoader classLoader,
+            ExecutorService executor) throws IOException {
+        preverify(archive, outputFile, null, null, classLoader, executor);
+    }
+
+    /**
+     * Preverify the specified archive file using the specified class loader,
+     * reusing the results of the previous preverification if the previous
+     * archives are not <code>null</code>. The classes are preverified using
+     * the specified executor or on the calling thread if the executor is
+     * <code>null</code>.
+     * 
+     * @param archive
+     * @param outputFile
+     * @param previousArchive
+     * @param previousOutputFile
+     * @param classLoader
+     * @param executor
+     * @throws IOException
+     */
+    void preverify(File archive, File outputFile, File previousArchive,
+            File previousOutputFile, ClassLoader classLoader,
+            ExecutorService executor) throws IOException {
         ZipFile zipArchive = new ZipFile(archive, ZipFile.OPEN_READ);
-        ZipOutputStream zipStream = new ZipOutputStream(new FileOutputStream(
-                outputFile));
+        ZipArchiveReader rawReader = null;
+        IncrementalBaseline baseline = null;
+        ZipArchiveWriter zipWriter = null;
 
         try {
+            rawReader = openRawReader(archive, zipArchive);
+            baseline = openBaseline(previousArchive, previousOutputFile,
+                    rawReader, classLoader);
+            zipWriter = new ZipArchiveWriter(new FileOutputStream(outputFile),
+                    outputOptions);
+
             // Start me up...
             listener.fileBegin(zipArchive);
 
-            Enumeration<? extends ZipEntry> entries =  zipArchive.entries();
-            while (entries.hasMoreElements()) {
-                ZipEntry entry = entries.nextElement();
-                handleEntry(entry, zipArchive, zipStream, classLoader);
+            if (executor != null) {
+                handleEntriesInParallel(zipArchive, rawReader, baseline,
+                        zipWriter, classLoader, executor);
+            } else {
+                for (SourceEntry sourceEntry : getSourceEntries(zipArchive,
+                        rawReader)) {
+                    handleEntry(sourceEntry.entry, sourceEntry.rawEntry,
+                            zipArchive, rawReader, baseline, zipWriter,
+                            classLoader);
+                }
             }
 
             // All done...
             listener.fileEnd(zipArchive);
         } finally {
-            if (zipStream != null)
-                zipStream.close();
+            if (zipWriter != null)
+                zipWriter.close();
+            if (baseline != null)
+                baseline.close();
+            if (rawReader != null)
+                rawReader.close();
             if (zipArchive != null)
                 zipArchive.close();
         }
     }
 
+    /**
+     * Preverify the archive read from the specified stream using the specified
+     * classpath, writing the preverified archive into the output stream. The
+     * entries are read sequentially and each of them is written as soon as it
+     * has been handled, so neither the input nor the output needs to be a
+     * file. The listener receives <code>null</code> instead of the archive
+     * file. The streams are not closed, but the output archive is finished.
+     * 
+     * @param archiveStream
+     * @param outputStream
+     * @param classpath
+     * @throws IOException
+     */
+    public void preverify(InputStream archiveStream, OutputStream outputStream,
+            URL[] classpath) throws IOException {
+        if ((archiveStream == null) || (outputStream == null)) {
+            throw new IllegalArgumentException(
+                    "Archive and output streams must not be null");
+        }
+
+        ClassLoader classLoader = new URLClassLoader(classpath, Thread
+                .currentThread().getContextClassLoader());
+
+        try {
+            ZipInputStream zipInput = new ZipInputStream(archiveStream);
+            ZipArchiveWriter zipWriter = new ZipArchiveWriter(outputStream,
+                    outputOptions);
+
+            // Start me up...
+            listener.fileBegin(null);
+
+            if (threadCount > 1) {
+                ExecutorService executor = Executors
+                        .newFixedThreadPool(threadCount);
+                try {
+                    handleStreamEntries(zipInput, zipWriter, classLoader,
+                            executor);
+                } finally {
+                    executor.shutdownNow();
+                }
+            } else {
+                handleStreamEntries(zipInput, zipWriter, classLoader, null);
+            }
+
+            // All done...
+            listener.fileEnd(null);
+            zipWriter.finish();
+        } finally {
+            // Class loaders are closeable since Java 7
+            if (classLoader instanceof Closeable) {
+                ((Closeable) classLoader).close();
+            }
+        }
+    }
+
     /**
      * Copy the non-content information about the ZipEntry.
      * 
@@ -104,7 +556,9 @@ public class ArchivePreverifier {
     private ZipEntry copyEntry(ZipEntry entry) {
         ZipEntry entryCopy = new ZipEntry(entry.getName());
         entryCopy.setComment(entry.getComment());
-        entryCopy.setSize(entry.getSize());
+        if (entry.getSize() >= 0) {
+            entryCopy.setSize(entry.getSize());
+        }
         entryCopy.setTime(entry.getTime());
 
         return entryCopy;
@@ -114,16 +568,43 @@ public class ArchivePreverifier {
      * Copy the specified ZipEntry from the source to the destination.
      * 
      * @param entry
+     * @param is the contents of the entry
+     * @param zipWriter
+     * @throws IOException
+     */
+    private void copyEntryAndContents(ZipEntry entry, InputStream is,
+            ZipArchiveWriter zipWriter) throws IOException {
+        ZipEntry entryCopy = copyEntry(entry);
+        zipWriter.writeEntry(entryCopy, is);
+    }
+
+    /**
+     * Copy the specified ZipEntry from the source archive to the destination,
+     * reusing the compressed data if they are compressed as required by the
+     * output options.
+     * 
+     * @param entry
+     * @param rawEntry the description of the entry as read by the raw reader
+     *            or <code>null</code> if not available
      * @param zipArchive
-     * @param zipStream
+     * @param rawReader
+     * @param zipWriter
      * @throws IOException
      */
-    private void copyEntryAndContents(ZipEntry entry, ZipFile zipArchive,
-            ZipOutputStream zipStream) throws IOException {
-        InputStream is = zipArchive.getInputStream(entry);
+    private void copyEntryAndContents(ZipEntry entry,
+            ZipArchiveReader.Entry rawEntry, ZipFile zipArchive,
+            ZipArchiveReader rawReader, ZipArchiveWriter zipWriter)
+            throws IOException {
         ZipEntry entryCopy = copyEntry(entry);
-        zipStream.putNextEntry(entryCopy);
-        copyInputToOutput(is, zipStream);
+        if ((rawEntry != null)
+                && zipWriter.canWriteRawEntry(entryCopy, rawEntry)) {
+            zipWriter.writeRawEntry(entryCopy, rawReader, rawEntry);
+        } else if ((rawEntry != null) && rawReader.isReadable(rawEntry)) {
+            zipWriter.writeEntry(entryCopy, rawReader.readContents(rawEntry));
+        } else {
+            copyEntryAndContents(entry, zipArchive.getInputStream(entry),
+                    zipWriter);
+        }
     }
 
     /**
@@ -143,56 +624,650 @@ public class ArchivePreverifier {
         }
     }
 
+    /**
+     * Return the entries of the zip file in the order they are to be written,
+     * together with the entries of the raw reader whose compressed data can
+     * be copied.
+     * 
+     * @param zipArchive
+     * @param rawReader
+     * @return
+     */
+    private List<SourceEntry> getSourceEntries(ZipFile zipArchive,
+            ZipArchiveReader rawReader) {
+        List<SourceEntry> sourceEntries = new ArrayList<SourceEntry>(
+                zipArchive.size());
+
+        Enumeration<? extends ZipEntry> entries = zipArchive.entries();
+        for (int i = 0; entries.hasMoreElements(); i++) {
+            ZipEntry entry = entries.nextElement();
+
+            ZipArchiveReader.Entry rawEntry = null;
+            if (rawReader != null) {
+                rawEntry = rawReader.getEntries().get(i);
+                if (rawEntry.isEncrypted()) {
+                    rawEntry = null;
+                }
+            }
+
+            sourceEntries.add(new SourceEntry(entry, rawEntry));
+        }
+
+        if (outputOptions.isCanonicalOrder()) {
+            Collections.sort(sourceEntries, new Comparator<SourceEntry>() {
+                public int compare(SourceEntry first, SourceEntry second) {
+                    String firstName = first.entry.getName();
+                    String secondName = second.entry.getName();
+                    int rankDifference = getCanonicalRank(firstName)
+                            - getCanonicalRank(secondName);
+
+                    return (rankDifference != 0) ? rankDifference : firstName
+                            .compareTo(secondName);
+                }
+            });
+        }
+
+        return sourceEntries;
+    }
+
+    /**
+     * Return the rank of the specified entry in the canonical order. The
+     * readers of the archive expect the META-INF directory and the manifest
+     * at its beginning, followed by the signature files, so the META-INF
+     * entries come before all the others.
+     * 
+     * @param entryName
+     * @return
+     */
+    private static int getCanonicalRank(String entryName) {
+        if (entryName.equalsIgnoreCase(META_INF_DIRECTORY)) {
+            return 0;
+        } else if (entryName.equalsIgnoreCase(MANIFEST_NAME)) {
+            return 1;
+        } else if (entryName.regionMatches(true, 0, META_INF_DIRECTORY, 0,
+                META_INF_DIRECTORY.length())) {
+            return 2;
+        }
+
+        return 3;
+    }
+
+    /**
+     * Handle all the entries in the incoming zip file, preverifying the classes
+     * using the specified executor. The entries are written by the calling
+     * thread in the order of the incoming zip file.
+     * 
+     * @param zipArchive
+     * @param rawReader
+     * @param baseline
+     * @param zipWriter
+     * @param classLoader
+     * @param executor
+     * @throws IOException
+     */
+    private void handleEntriesInParallel(final ZipFile zipArchive,
+            final ZipArchiveReader rawReader, IncrementalBaseline baseline,
+            ZipArchiveWriter zipWriter, final ClassLoader classLoader,
+            ExecutorService executor) throws IOException {
+        int maximumPendingEntries = threadCount * PENDING_ENTRIES_PER_THREAD;
+        LinkedList<PendingEntry> pendingEntries = new LinkedList<PendingEntry>();
+        final MemoryBudget budget = memoryBudget;
+
+        List<SourceEntry> sourceEntries = getSourceEntries(zipArchive,
+                rawReader);
+        try {
+            for (SourceEntry sourceEntry : sourceEntries) {
+                final ZipEntry entry = sourceEntry.entry;
+                if (entry.isDirectory()) {
+                    continue;
+                }
+
+                final ZipArchiveReader.Entry rawEntry = sourceEntry.rawEntry;
+                ZipArchiveReader.Entry reusableEntry = getReusableEntry(
+                        baseline, entry);
+                final PendingEntry pendingEntry;
+                if (reusableEntry != null) {
+                    if (!listener.classBegin(zipArchive, entry)) {
+                        continue;
+                    }
+
+                    pendingEntry = new PendingEntry(entry, reusableEntry,
+                            baseline.getOutputReader(), null);
+                    pendingEntry.reused = true;
+                } else if (isClassEntry(entry)) {
+                    if (!listener.classBegin(zipArchive, entry)) {
+                        continue;
+                    }
+
+                    long inputSize = (rawEntry != null) ? rawEntry.size
+                            : Math.max(entry.getSize(), 0);
+                    reserveInput(budget, inputSize, pendingEntries,
+                            zipArchive, zipWriter);
+
+                    pendingEntry = new PendingEntry(entry, rawEntry,
+                            rawReader, null);
+                    pendingEntry.budget = budget;
+                    pendingEntry.reservedBytes = inputSize;
+                    pendingEntry.results = executor
+                            .submit(new Callable<PreverificationResults>() {
+                                public PreverificationResults call()
+                                        throws IOException {
+                                    return reserveOutput(pendingEntry,
+                                            preverifyClass(entry, rawEntry,
+                                                    zipArchive, rawReader,
+                                                    classLoader));
+                                }
+                            });
+                } else {
+                    pendingEntry = new PendingEntry(entry, rawEntry,
+                            rawReader, null);
+                }
+
+                pendingEntries.add(pendingEntry);
+                if (pendingEntries.size() >= maximumPendingEntries) {
+                    writePendingEntry(pendingEntries.removeFirst(),
+                            zipArchive, zipWriter);
+                }
+            }
+
+            writePendingEntries(pendingEntries, zipArchive, zipWriter);
+        } finally {
+            discardPendingEntries(pendingEntries);
+        }
+    }
+
+    /**
+     * Handle all the entries read from the incoming zip stream. The classes
+     * are preverified using the specified executor or on the calling thread
+     * if the executor is <code>null</code>. As the contents of the resource
+     * entries can be read only once, all the pending classes are written
+     * before a resource is copied.
+     * 
+     * @param zipInput
+     * @param zipWriter
+     * @param classLoader
+     * @param executor
+     * @throws IOException
+     */
+    private void handleStreamEntries(ZipInputStream zipInput,
+            ZipArchiveWriter zipWriter, final ClassLoader classLoader,
+            ExecutorService executor) throws IOException {
+        int maximumPendingEntries = threadCount * PENDING_ENTRIES_PER_THREAD;
+        LinkedList<PendingEntry> pendingEntries = new LinkedList<PendingEntry>();
+        final MemoryBudget budget = memoryBudget;
+
+        try {
+            ZipEntry entry;
+            while ((entry = zipInput.getNextEntry()) != null) {
+                if (entry.isDirectory()) {
+                    continue;
+                }
+
+                if (isClassEntry(entry)) {
+                    if (!listener.classBegin(null, entry)) {
+                        continue;
+                    }
+
+                    final byte[] classBytes = readEntryContents(entry,
+                            zipInput);
+                    if (executor == null) {
+                        PreverificationResults results = classPreverifier
+                                .preverify(classBytes, classLoader);
+                        writePreverifiedEntry(entry, null, zipWriter, results);
+                    } else {
+                        reserveInput(budget, classBytes.length,
+                                pendingEntries, null, zipWriter);
+
+                        final PendingEntry pendingEntry = new PendingEntry(
+                                entry, null, null, null);
+                        pendingEntry.budget = budget;
+                        pendingEntry.reservedBytes = classBytes.length;
+                        pendingEntry.results = executor
+                                .submit(new Callable<PreverificationResults>() {
+                                    public PreverificationResults call() {
+                                        return reserveOutput(pendingEntry,
+                                                classPreverifier.preverify(
+                                                        classBytes,
+                                                        classLoader));
+                                    }
+                                });
+
+                        pendingEntries.add(pendingEntry);
+                        if (pendingEntries.size() >= maximumPendingEntries) {
+                            writePendingEntry(pendingEntries.removeFirst(),
+                                    null, zipWriter);
+                        }
+                    }
+                } else {
+                    writePendingEntries(pendingEntries, null, zipWriter);
+                    copyEntryAndContents(entry, zipInput, zipWriter);
+                }
+            }
+
+            writePendingEntries(pendingEntries, null, zipWriter);
+        } finally {
+            discardPendingEntries(pendingEntries);
+        }
+    }
+
     /**
      * Handle the specified entry in the incoming zip file.
      * 
      * @param entry
+     * @param rawEntry
      * @param zipArchive
-     * @param zipStream
+     * @param rawReader
+     * @param baseline
+     * @param zipWriter
      * @param classpath
      * @throws IOException
      */
-    private void handleEntry(ZipEntry entry, ZipFile zipArchive,
-            ZipOutputStream zipStream, ClassLoader classLoader)
-            throws IOException {
+    private void handleEntry(ZipEntry entry, ZipArchiveReader.Entry rawEntry,
+            ZipFile zipArchive, ZipArchiveReader rawReader,
+            IncrementalBaseline baseline, ZipArchiveWriter zipWriter,
+            ClassLoader classLoader) throws IOException {
         if (!entry.isDirectory()) {
-            String entryName = entry.getName();
-            if (entryName.endsWith(".class")) {
-                preverifyEntry(entry, zipArchive, zipStream, classLoader);
+            ZipArchiveReader.Entry reusableEntry = getReusableEntry(baseline,
+                    entry);
+            if (reusableEntry != null) {
+                if (listener.classBegin(zipArchive, entry)) {
+                    writeReusedEntry(entry, reusableEntry, zipArchive,
+                            baseline.getOutputReader(), zipWriter);
+                }
+            } else if (isClassEntry(entry)) {
+                preverifyEntry(entry, rawEntry, zipArchive, rawReader,
+                        zipWriter, classLoader);
             } else {
-                copyEntryAndContents(entry, zipArchive, zipStream);
+                copyEntryAndContents(entry, rawEntry, zipArchive, rawReader,
+                        zipWriter);
+            }
+        }
+    }
+
+    /**
+     * Return the entry of the previous output archive that can be copied
+     * instead of preverifying the specified entry or <code>null</code> if
+     * there is no such entry.
+     * 
+     * @param baseline the baseline or <code>null</code> if not preverifying
+     *            incrementally
+     * @param entry
+     * @return
+     */
+    private ZipArchiveReader.Entry getReusableEntry(
+            IncrementalBaseline baseline, ZipEntry entry) {
+        return (baseline == null) ? null : baseline.getReusableEntry(entry
+                .getName());
+    }
+
+    /**
+     * Return a boolean indicating whether the specified entry is a class to be
+     * preverified.
+     * 
+     * @param entry
+     * @return
+     */
+    private boolean isClassEntry(ZipEntry entry) {
+        return entry.getName().endsWith(".class");
+    }
+
+    /**
+     * Open the baseline for preverifying the archive incrementally and compare
+     * it with the archive. Return <code>null</code> if the archive is to be
+     * preverified completely.
+     * 
+     * @param previousArchive
+     * @param previousOutputFile
+     * @param rawReader
+     * @param classLoader
+     * @return
+     * @throws IOException
+     */
+    private IncrementalBaseline openBaseline(File previousArchive,
+            File previousOutputFile, ZipArchiveReader rawReader,
+            ClassLoader classLoader) throws IOException {
+        if (rawReader == null) {
+            return null;
+        }
+
+        IncrementalBaseline baseline = IncrementalBaseline.open(
+                previousArchive, previousOutputFile);
+        if (baseline != null) {
+            try {
+                baseline.compare(rawReader, classLoader, classPreverifier
+                        .getPlatformHierarchy());
+            } catch (IOException e) {
+                baseline.close();
+                throw e;
+            } catch (RuntimeException e) {
+                baseline.close();
+                throw e;
             }
         }
+
+        return baseline;
+    }
+
+    /**
+     * Open the raw reader of the specified archive, so the compressed data of
+     * its resources can be copied. Return <code>null</code> if the archive
+     * cannot be read this way or its central directory does not match the
+     * entries of the zip file.
+     * 
+     * @param archive
+     * @param zipArchive
+     * @return
+     * @throws IOException
+     */
+    private ZipArchiveReader openRawReader(File archive, ZipFile zipArchive)
+            throws IOException {
+        ZipArchiveReader rawReader;
+        try {
+            rawReader = new ZipArchiveReader(archive);
+        } catch (ZipException e) {
+            return null;
+        }
+
+        List<ZipArchiveReader.Entry> rawEntries = rawReader.getEntries();
+        boolean matching = (rawEntries.size() == zipArchive.size());
+
+        Enumeration<? extends ZipEntry> entries = zipArchive.entries();
+        for (int i = 0; matching && entries.hasMoreElements(); i++) {
+            matching = entries.nextElement().getName().equals(
+                    rawEntries.get(i).name);
+        }
+
+        if (!matching) {
+            rawReader.close();
+            rawReader = null;
+        }
+
+        return rawReader;
+    }
+
+    /**
+     * Preverify the specified class in the zip file, reading its contents
+     * through the raw reader if possible.
+     * 
+     * @param entry
+     * @param rawEntry
+     * @param zipArchive
+     * @param rawReader
+     * @param classLoader
+     * @return
+     * @throws IOException
+     */
+    private PreverificationResults preverifyClass(ZipEntry entry,
+            ZipArchiveReader.Entry rawEntry, ZipFile zipArchive,
+            ZipArchiveReader rawReader, ClassLoader classLoader)
+            throws IOException {
+        PreverificationResults results;
+
+        if ((rawEntry != null) && rawReader.isReadable(rawEntry)) {
+            byte[] classBytes = rawReader.readContents(rawEntry);
+            results = classPreverifier.preverify(classBytes, classLoader);
+        } else {
+            InputStream is = zipArchive.getInputStream(entry);
+            results = classPreverifier.preverify(is, classLoader);
+        }
+
+        return results;
     }
 
     /**
      * Preverify the specified class entry in the zip file.
      * 
      * @param entry
+     * @param rawEntry
      * @param zipArchive
-     * @param zipStream
+     * @param rawReader
+     * @param zipWriter
      * @param classpath
      * @throws IOException
      */
-    private boolean preverifyEntry(ZipEntry entry, ZipFile zipArchive,
-            ZipOutputStream zipStream, ClassLoader classLoader)
-            throws IOException {
+    private boolean preverifyEntry(ZipEntry entry,
+            ZipArchiveReader.Entry rawEntry, ZipFile zipArchive,
+            ZipArchiveReader rawReader, ZipArchiveWriter zipWriter,
+            ClassLoader classLoader) throws IOException {
         boolean keepGoing = listener.classBegin(zipArchive, entry);
 
         if (keepGoing) {
-            InputStream is = zipArchive.getInputStream(entry);
-            PreverificationResults results = classPreverifier.preverify(is,
-                    classLoader);
+            PreverificationResults results = preverifyClass(entry, rawEntry,
+                    zipArchive, rawReader, classLoader);
+            keepGoing = writePreverifiedEntry(entry, zipArchive, zipWriter,
+                    results);
+        }
 
-            if (!results.isErrorResult()) {
-                ZipEntry entryCopy = copyEntry(entry);
-                zipStream.putNextEntry(entryCopy);
-                zipStream.write(results.getPreverifiedClassBytes());
+        return keepGoing;
+    }
+
+    /**
+     * Read the contents of the current entry of the zip stream.
+     * 
+     * @param entry
+     * @param zipInput
+     * @return
+     * @throws IOException
+     */
+    private byte[] readEntryContents(ZipEntry entry, ZipInputStream zipInput)
+            throws IOException {
+        int expectedSize = (entry.getSize() >= 0) ? (int) entry.getSize()
+                : 1024;
+        ByteArrayOutputStream contents = new ByteArrayOutputStream(
+                expectedSize);
+        copyInputToOutput(zipInput, contents);
+
+        return contents.toByteArray();
+    }
+
+    /**
+     * Reserve the memory budget for the input of a class to be preverified.
+     * While the budget is exhausted, the pending entries are written, which
+     * releases their reservations. If there are no pending entries left, the
+     * budget must be held by other archives, so the calling thread waits for
+     * them.
+     * 
+     * @param budget the budget or <code>null</code> if not limited
+     * @param inputSize
+     * @param pendingEntries
+     * @param zipArchive
+     * @param zipWriter
+     * @throws IOException
+     */
+    private void reserveInput(MemoryBudget budget, long inputSize,
+            LinkedList<PendingEntry> pendingEntries, ZipFile zipArchive,
+            ZipArchiveWriter zipWriter) throws IOException {
+        if (budget == null) {
+            return;
+        }
+
+        while (!budget.tryReserve(inputSize)) {
+            if (pendingEntries.isEmpty()) {
+                try {
+                    budget.reserve(inputSize);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException(
+                            "Interrupted while waiting for memory budget");
+                }
+                return;
             }
 
-            keepGoing = listener.classEnd(zipArchive, entry, results);
+            writePendingEntry(pendingEntries.removeFirst(), zipArchive,
+                    zipWriter);
         }
+    }
 
-        return keepGoing;
+    /**
+     * Reserve the memory budget for the preverified class of the pending
+     * entry. The class already exists, so the reservation never waits.
+     * 
+     * @param pendingEntry
+     * @param results
+     * @return the results
+     */
+    private PreverificationResults reserveOutput(PendingEntry pendingEntry,
+            PreverificationResults results) {
+        pendingEntry.reserveOutput(getOutputSize(results));
+        return results;
+    }
+
+    /**
+     * Return the size of the preverified class.
+     * 
+     * @param results
+     * @return
+     */
+    private long getOutputSize(PreverificationResults results) {
+        byte[] classBytes = results.getPreverifiedClassBytes();
+        return (classBytes == null) ? 0 : classBytes.length;
+    }
+
+    /**
+     * Write all the entries that have been handled in parallel.
+     * 
+     * @param pendingEntries
+     * @param zipArchive
+     * @param zipWriter
+     * @throws IOException
+     */
+    private void writePendingEntries(LinkedList<PendingEntry> pendingEntries,
+            ZipFile zipArchive, ZipArchiveWriter zipWriter) throws IOException {
+        while (!pendingEntries.isEmpty()) {
+            writePendingEntry(pendingEntries.removeFirst(), zipArchive,
+                    zipWriter);
+        }
+    }
+
+    /**
+     * Discard the entries that have not been written because of a failure.
+     * Their preverification is cancelled unless it has started already and
+     * all the memory budget reserved for them is released, so the other
+     * users of the budget do not wait for it forever.
+     * 
+     * @param pendingEntries
+     */
+    private void discardPendingEntries(
+            LinkedList<PendingEntry> pendingEntries) {
+        while (!pendingEntries.isEmpty()) {
+            PendingEntry pendingEntry = pendingEntries.removeFirst();
+            if (pendingEntry.results != null) {
+                pendingEntry.results.cancel(false);
+            }
+            pendingEntry.release();
+        }
+    }
+
+    /**
+     * Write the entry that has been handled in parallel, waiting for its
+     * preverification to finish as necessary.
+     * 
+     * @param pendingEntry
+     * @param zipArchive
+     * @param zipWriter
+     * @throws IOException
+     */
+    private void writePendingEntry(PendingEntry pendingEntry,
+            ZipFile zipArchive, ZipArchiveWriter zipWriter) throws IOException {
+        if (pendingEntry.reused) {
+            writeReusedEntry(pendingEntry.entry, pendingEntry.rawEntry,
+                    zipArchive, pendingEntry.rawReader, zipWriter);
+        } else if (pendingEntry.results == null) {
+            copyEntryAndContents(pendingEntry.entry, pendingEntry.rawEntry,
+                    zipArchive, pendingEntry.rawReader, zipWriter);
+        } else {
+            try {
+                writePreverifiedEntry(pendingEntry.entry, zipArchive,
+                        zipWriter, getResults(pendingEntry));
+            } finally {
+                pendingEntry.release();
+            }
+        }
+    }
+
+    /**
+     * Return the results of the class preverification of the pending entry,
+     * waiting for it to finish as necessary.
+     * 
+     * @param pendingEntry
+     * @return
+     * @throws IOException
+     */
+    private PreverificationResults getResults(PendingEntry pendingEntry)
+            throws IOException {
+        try {
+            return pendingEntry.results.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while preverifying "
+                    + pendingEntry.entry.getName());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+
+            IOException ioException = new IOException("Unable to preverify "
+                    + pendingEntry.entry.getName());
+            ioException.initCause(cause);
+            throw ioException;
+        }
+    }
+
+    /**
+     * Write the results of the class preverification into the output and
+     * notify the listener.
+     * 
+     * @param entry
+     * @param zipArchive
+     * @param zipWriter
+     * @param results
+     * @return
+     * @throws IOException
+     */
+    private boolean writePreverifiedEntry(ZipEntry entry, ZipFile zipArchive,
+            ZipArchiveWriter zipWriter, PreverificationResults results)
+            throws IOException {
+        if (!results.isErrorResult()) {
+            ZipEntry entryCopy = copyEntry(entry);
+            zipWriter.writeEntry(entryCopy, results.getPreverifiedClassBytes());
+        }
+
+        return listener.classEnd(zipArchive, entry, results);
+    }
+
+    /**
+     * Copy the preverified class reused from the previous output archive into
+     * the output and notify the listener as if the class had been
+     * preverified again.
+     * 
+     * @param entry
+     * @param reusableEntry the entry of the previous output archive
+     * @param zipArchive
+     * @param outputReader the reader of the previous output archive
+     * @param zipWriter
+     * @return
+     * @throws IOException
+     */
+    private boolean writeReusedEntry(ZipEntry entry,
+            ZipArchiveReader.Entry reusableEntry, ZipFile zipArchive,
+            ZipArchiveReader outputReader, ZipArchiveWriter zipWriter)
+            throws IOException {
+        byte[] classBytes = outputReader.readContents(reusableEntry);
+
+        ZipEntry entryCopy = copyEntry(entry);
+        if (zipWriter.canWriteRawEntry(entryCopy, reusableEntry)) {
+            zipWriter.writeRawEntry(entryCopy, outputReader, reusableEntry);
+        } else {
+            zipWriter.writeEntry(entryCopy, classBytes);
+        }
+
+        PreverificationResults results = new PreverificationResults(null,
+                classBytes, new PreverificationError[0]);
+        return listener.classEnd(zipArchive, entry, results);
     }
 }
@@ -0,0 +1,313 @@
+/**
+ * Copyright (c) 2010 Vít Šesták
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package v6.java.preverifier;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import v6.java.preverifier.results.PreverificationResults;
+
+/**
+ * An archive preverification listener that delivers the callbacks to an
+ * {@link IBatchArchivePreverificationListener} on a separate thread. The
+ * callbacks are queued and the ends of the classes are delivered in batches,
+ * so the preverification does not wait for the listener unless the queue is
+ * full.
+ * <p>
+ * As the listener runs behind the preverifier, its decision not to continue
+ * takes effect with a delay: all the classes begun afterwards are skipped.
+ * If the listener throws an exception, no more callbacks are delivered, the
+ * remaining classes are skipped and the exception is thrown by
+ * {@link #close()}. The adapter must be closed once the preverification is
+ * done, which waits for all the queued callbacks to be delivered.
+ * </p>
+ * <p>
+ * The archives are passed to the listener by their names only, as the
+ * preverifier closes an archive right after its end, usually before the
+ * callbacks have been delivered.
+ * </p>
+ */
+public class AsynchronousArchivePreverificationListener implements
+        IArchivePreverificationListener {
+
+    /** The default maximum number of queued callbacks. */
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+    /** The default maximum number of classes delivered in a single batch. */
+    public static final int DEFAULT_BATCH_SIZE = 64;
+
+    private static final int FILE_BEGIN = 0;
+    private static final int CLASS_END = 1;
+    private static final int FILE_END = 2;
+    private static final int STOP = 3;
+
+    /** A callback waiting for being delivered. */
+    private static class QueuedEvent {
+        private int type;
+        private String archiveName;
+        private ClassPreverificationEvent classEvent;
+
+        /**
+         * Construct a new queued event.
+         *
+         * @param type
+         * @param archiveName
+         * @param classEvent the end of the class or <code>null</code> if the
+         *            event is not the end of a class
+         */
+        QueuedEvent(int type, String archiveName,
+                ClassPreverificationEvent classEvent) {
+            this.type = type;
+            this.archiveName = archiveName;
+            this.classEvent = classEvent;
+        }
+    }
+
+    private IBatchArchivePreverificationListener listener;
+    private int batchSize;
+    private BlockingQueue<QueuedEvent> queue;
+    private Thread deliveryThread;
+    private volatile boolean cancelled;
+    private volatile Throwable failure;
+    private volatile boolean closed;
+
+    /**
+     * Create a new adapter with the default queue capacity and batch size.
+     *
+     * @param listener
+     */
+    public AsynchronousArchivePreverificationListener(
+            IBatchArchivePreverificationListener listener) {
+        this(listener, DEFAULT_QUEUE_CAPACITY, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Create a new adapter delivering the callbacks to the specified
+     * listener.
+     *
+     * @param listener
+     * @param queueCapacity the maximum number of queued callbacks
+     * @param batchSize the maximum number of classes delivered at once
+     * @throws IllegalArgumentException if the listener is <code>null</code>
+     *             or the capacity or batch size is less than 1
+     */
+    public AsynchronousArchivePreverificationListener(
+            IBatchArchivePreverificationListener listener, int queueCapacity,
+            int batchSize) {
+        super();
+
+        if (listener == null) {
+            throw new IllegalArgumentException("Listener must not be null");
+        }
+        if ((queueCapacity < 1) || (batchSize < 1)) {
+            throw new IllegalArgumentException(
+                    "Queue capacity and batch size must be at least 1");
+        }
+
+        this.listener = listener;
+        this.batchSize = batchSize;
+        this.queue = new ArrayBlockingQueue<QueuedEvent>(queueCapacity);
+
+        deliveryThread = new Thread(new Runnable() {
+            public void run() {
+                deliverEvents();
+            }
+        }, "Preverification listener");
+        deliveryThread.setDaemon(true);
+        deliveryThread.start();
+    }
+
+    /**
+     * @see v6.java.preverifier.IArchivePreverificationListener#fileBegin(java.util.zip.ZipFile)
+     */
+    public void fileBegin(ZipFile archive) {
+        enqueue(new QueuedEvent(FILE_BEGIN, getArchiveName(archive), null));
+    }
+
+    /**
+     * @see v6.java.preverifier.IArchivePreverificationListener#classBegin(java.util.zip.ZipFile,
+     *      java.util.zip.ZipEntry)
+     */
+    public boolean classBegin(ZipFile archive, ZipEntry classEntry) {
+        return !cancelled;
+    }
+
+    /**
+     * @see v6.java.preverifier.IArchivePreverificationListener#classEnd(java.util.zip.ZipFile,
+     *      java.util.zip.ZipEntry,
+     *      v6.java.preverifier.results.PreverificationResults)
+     */
+    public boolean classEnd(ZipFile archive, ZipEntry classEntry,
+            PreverificationResults results) {
+        String archiveName = getArchiveName(archive);
+        enqueue(new QueuedEvent(CLASS_END, archiveName,
+                new ClassPreverificationEvent(archiveName, classEntry,
+                        results)));
+        return !cancelled;
+    }
+
+    /**
+     * @see v6.java.preverifier.IArchivePreverificationListener#fileEnd(java.util.zip.ZipFile)
+     */
+    public void fileEnd(ZipFile archive) {
+        enqueue(new QueuedEvent(FILE_END, getArchiveName(archive), null));
+    }
+
+    /**
+     * Wait for all the queued callbacks to be delivered and stop the delivery
+     * thread. The exception thrown by the listener, if any, is thrown again.
+     */
+    public synchronized void close() {
+        if (!closed) {
+            enqueue(new QueuedEvent(STOP, null, null));
+            closed = true;
+
+            try {
+                deliveryThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        Throwable cause = failure;
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        } else if (cause != null) {
+            throw new RuntimeException("Listener failed", cause);
+        }
+    }
+
+    /**
+     * Return the name of the specified archive or <code>null</code> if there
+     * is no archive.
+     *
+     * @param archive
+     * @return
+     */
+    private String getArchiveName(ZipFile archive) {
+        return (archive == null) ? null : archive.getName();
+    }
+
+    /**
+     * Queue the specified event, waiting for a free space in the queue. If
+     * the waiting thread is interrupted, the event is dropped.
+     *
+     * @param event
+     */
+    private void enqueue(QueuedEvent event) {
+        if (closed) {
+            throw new IllegalStateException("Listener has been closed");
+        }
+
+        try {
+            queue.put(event);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Deliver the queued events until stopped. The events are taken from the
+     * queue in batches, and the ends of consecutive classes are delivered
+     * together.
+     */
+    private void deliverEvents() {
+        List<QueuedEvent> events = new ArrayList<QueuedEvent>(batchSize);
+        List<ClassPreverificationEvent> classEvents = new ArrayList<ClassPreverificationEvent>(
+                batchSize);
+        boolean stopped = false;
+
+        while (!stopped) {
+            try {
+                events.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(events, batchSize - 1);
+
+            for (QueuedEvent event : events) {
+                if (event.type == CLASS_END) {
+                    classEvents.add(event.classEvent);
+                } else {
+                    deliverClassEvents(classEvents);
+                    if (event.type == STOP) {
+                        stopped = true;
+                    } else {
+                        deliverFileEvent(event);
+                    }
+                }
+            }
+
+            deliverClassEvents(classEvents);
+            events.clear();
+        }
+    }
+
+    /**
+     * Deliver the ends of the classes collected so far.
+     *
+     * @param classEvents
+     */
+    private void deliverClassEvents(
+            List<ClassPreverificationEvent> classEvents) {
+        if (classEvents.isEmpty()) {
+            return;
+        }
+
+        if (failure == null) {
+            try {
+                List<ClassPreverificationEvent> batch = new ArrayList<ClassPreverificationEvent>(
+                        classEvents);
+                if (!listener.classesEnd(batch)) {
+                    cancelled = true;
+                }
+            } catch (Throwable e) {
+                fail(e);
+            }
+        }
+
+        classEvents.clear();
+    }
+
+    /**
+     * Deliver the beginning or the end of an archive.
+     *
+     * @param event
+     */
+    private void deliverFileEvent(QueuedEvent event) {
+        if (failure == null) {
+            try {
+                if (event.type == FILE_BEGIN) {
+                    listener.fileBegin(event.archiveName);
+                } else {
+                    listener.fileEnd(event.archiveName);
+                }
+            } catch (Throwable e) {
+                fail(e);
+            }
+        }
+    }
+
+    /**
+     * Record the failure of the listener. The remaining events are discarded,
+     * so the queue never blocks the preverification.
+     *
+     * @param e
+     */
+    private void fail(Throwable e) {
+        failure = e;
+        cancelled = true;
+    }
+}
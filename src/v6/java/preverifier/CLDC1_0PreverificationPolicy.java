@@ -38,4 +38,11 @@ public class CLDC1_0PreverificationPolicy extends AbstractPreverificationPolicy
     public boolean isFloatingPointAllowed() {
         return false;
     }
+
+    /**
+     * @see v6.java.preverifier.AbstractPreverificationPolicy#getConfigurationName()
+     */
+    public String getConfigurationName() {
+        return PlatformHierarchy.CLDC_1_0;
+    }
 }
@@ -36,4 +36,11 @@ public class CLDC1_1PreverificationPolicy extends AbstractPreverificationPolicy
     public boolean isFloatingPointAllowed() {
         return true;
     }
+
+    /**
+     * @see v6.java.preverifier.AbstractPreverificationPolicy#getConfigurationName()
+     */
+    public String getConfigurationName() {
+        return PlatformHierarchy.CLDC_1_1;
+    }
 }
@@ -0,0 +1,73 @@
+/**
+ * Copyright (c) 2010 Vít Šesták
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package v6.java.preverifier;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An index of the class hierarchy built from the headers of the class files.
+ * The information about each class is read from the source only once and
+ * remembered, including the fact that a class is missing. The hierarchy can
+ * be used by several threads at once.
+ */
+class ClassHierarchy {
+
+    /** The marker of the classes that cannot be found. */
+    private static final ClassInfo MISSING_CLASS = new ClassInfo(null, null,
+            new String[0], 0);
+
+    private IClassInfoSource source;
+    private ConcurrentHashMap<String, ClassInfo> classInfos;
+
+    /**
+     * Construct a new hierarchy reading the classes from the specified
+     * source.
+     *
+     * @param source
+     */
+    ClassHierarchy(IClassInfoSource source) {
+        this.source = source;
+        this.classInfos = new ConcurrentHashMap<String, ClassInfo>();
+    }
+
+    /**
+     * Return the information about the class with the specified internal name
+     * or <code>null</code> if the class cannot be found.
+     *
+     * @param internalName
+     * @return
+     */
+    ClassInfo getClassInfo(String internalName) {
+        ClassInfo classInfo = classInfos.get(internalName);
+
+        if (classInfo == null) {
+            classInfo = source.getClassInfo(internalName);
+            if (classInfo == null) {
+                classInfo = MISSING_CLASS;
+            }
+
+            ClassInfo previous = classInfos.putIfAbsent(internalName,
+                    classInfo);
+            if (previous != null) {
+                classInfo = previous;
+            }
+        }
+
+        return (classInfo == MISSING_CLASS) ? null : classInfo;
+    }
+
+    /**
+     * Return the source of the class information.
+     *
+     * @return
+     */
+    IClassInfoSource getSource() {
+        return source;
+    }
+}
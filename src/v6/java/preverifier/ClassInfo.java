@@ -0,0 +1,218 @@
+/**
+ * Copyright (c) 2010 Vít Šesták
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package v6.java.preverifier;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.objectweb.asm.Opcodes;
+
+/**
+ * The information about a class needed for validating types and computing
+ * the hierarchy, as read from the header of its class file. Only the
+ * constant pool, the access flags, the class name, the super class and the
+ * interfaces are read, the fields, methods and attributes are not.
+ */
+class ClassInfo {
+
+    private static final int MAGIC = 0xCAFEBABE;
+
+    // Constant pool tags
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_FLOAT = 4;
+    private static final int CONSTANT_LONG = 5;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+    private static final int CONSTANT_METHOD_HANDLE = 15;
+    private static final int CONSTANT_METHOD_TYPE = 16;
+    private static final int CONSTANT_DYNAMIC = 17;
+    private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+    private static final int CONSTANT_MODULE = 19;
+    private static final int CONSTANT_PACKAGE = 20;
+
+    private String name;
+    private String superName;
+    private String[] interfaces;
+    private int access;
+
+    /**
+     * Construct a new class information.
+     *
+     * @param name the internal name of the class
+     * @param superName the internal name of the super class or
+     *            <code>null</code> for java/lang/Object
+     * @param interfaces the internal names of the interfaces
+     * @param access the access flags
+     */
+    ClassInfo(String name, String superName, String[] interfaces, int access) {
+        this.name = name;
+        this.superName = superName;
+        this.interfaces = interfaces;
+        this.access = access;
+    }
+
+    /**
+     * Read the class information from the header of the class file in the
+     * specified stream. The stream is not closed.
+     *
+     * @param classStream
+     * @return
+     * @throws IOException if the stream does not contain a class file
+     */
+    static ClassInfo read(InputStream classStream) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(
+                classStream));
+        if (input.readInt() != MAGIC) {
+            throw new IOException("Not a class file");
+        }
+
+        // Minor and major versions
+        input.readUnsignedShort();
+        input.readUnsignedShort();
+
+        int constantCount = input.readUnsignedShort();
+        String[] utf8Constants = new String[constantCount];
+        int[] classConstants = new int[constantCount];
+        byte[] skipBuffer = new byte[8];
+
+        for (int i = 1; i < constantCount; i++) {
+            int tag = input.readUnsignedByte();
+            switch (tag) {
+                case CONSTANT_UTF8:
+                    utf8Constants[i] = input.readUTF();
+                    break;
+                case CONSTANT_CLASS:
+                    classConstants[i] = input.readUnsignedShort();
+                    break;
+                case CONSTANT_STRING:
+                case CONSTANT_METHOD_TYPE:
+                case CONSTANT_MODULE:
+                case CONSTANT_PACKAGE:
+                    input.readFully(skipBuffer, 0, 2);
+                    break;
+                case CONSTANT_METHOD_HANDLE:
+                    input.readFully(skipBuffer, 0, 3);
+                    break;
+                case CONSTANT_INTEGER:
+                case CONSTANT_FLOAT:
+                case CONSTANT_FIELDREF:
+                case CONSTANT_METHODREF:
+                case CONSTANT_INTERFACE_METHODREF:
+                case CONSTANT_NAME_AND_TYPE:
+                case CONSTANT_DYNAMIC:
+                case CONSTANT_INVOKE_DYNAMIC:
+                    input.readFully(skipBuffer, 0, 4);
+                    break;
+                case CONSTANT_LONG:
+                case CONSTANT_DOUBLE:
+                    input.readFully(skipBuffer, 0, 8);
+                    // Takes two constant pool entries
+                    i++;
+                    break;
+                default:
+                    throw new IOException("Invalid constant pool tag " + tag);
+            }
+        }
+
+        int access = input.readUnsignedShort();
+        String name = getClassName(input.readUnsignedShort(), utf8Constants,
+                classConstants);
+        int superIndex = input.readUnsignedShort();
+        String superName = (superIndex == 0) ? null : getClassName(
+                superIndex, utf8Constants, classConstants);
+
+        String[] interfaces = new String[input.readUnsignedShort()];
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaces[i] = getClassName(input.readUnsignedShort(),
+                    utf8Constants, classConstants);
+        }
+
+        return new ClassInfo(name, superName, interfaces, access);
+    }
+
+    /**
+     * Return the internal name of the class.
+     *
+     * @return
+     */
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Return the internal name of the super class or <code>null</code> if
+     * the class is java/lang/Object.
+     *
+     * @return
+     */
+    String getSuperName() {
+        return superName;
+    }
+
+    /**
+     * Return the internal names of the directly implemented interfaces.
+     *
+     * @return
+     */
+    String[] getInterfaces() {
+        return interfaces;
+    }
+
+    /**
+     * Return the access flags of the class.
+     *
+     * @return
+     */
+    int getAccess() {
+        return access;
+    }
+
+    /**
+     * Return a boolean indicating whether the class is an interface.
+     *
+     * @return
+     */
+    boolean isInterface() {
+        return (access & Opcodes.ACC_INTERFACE) != 0;
+    }
+
+    /**
+     * Return the class name referenced by the specified class constant.
+     *
+     * @param index
+     * @param utf8Constants
+     * @param classConstants
+     * @return
+     * @throws IOException if the constant is not a valid class constant
+     */
+    private static String getClassName(int index, String[] utf8Constants,
+            int[] classConstants) throws IOException {
+        String className = null;
+        if ((index > 0) && (index < classConstants.length)) {
+            int nameIndex = classConstants[index];
+            if ((nameIndex > 0) && (nameIndex < utf8Constants.length)) {
+                className = utf8Constants[nameIndex];
+            }
+        }
+
+        if (className == null) {
+            throw new IOException("Invalid class constant " + index);
+        }
+
+        return className;
+    }
+}
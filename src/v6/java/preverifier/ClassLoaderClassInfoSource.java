@@ -0,0 +1,59 @@
+/**
+ * Copyright (c) 2010 Vít Šesták
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package v6.java.preverifier;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A source of the class information reading the class files as the resources
+ * of a class loader. The classes are never loaded by the class loader.
+ */
+class ClassLoaderClassInfoSource implements IClassInfoSource {
+    private ClassLoader classLoader;
+
+    /**
+     * Construct a new source.
+     *
+     * @param classLoader
+     */
+    ClassLoaderClassInfoSource(ClassLoader classLoader) {
+        this.classLoader = classLoader;
+    }
+
+    /**
+     * Return the class loader the class files are read from.
+     *
+     * @return
+     */
+    ClassLoader getClassLoader() {
+        return classLoader;
+    }
+
+    /**
+     * @see v6.java.preverifier.IClassInfoSource#getClassInfo(java.lang.String)
+     */
+    public ClassInfo getClassInfo(String internalName) {
+        InputStream classStream = classLoader.getResourceAsStream(internalName
+                + ".class");
+        if (classStream == null) {
+            return null;
+        }
+
+        try {
+            try {
+                return ClassInfo.read(classStream);
+            } finally {
+                classStream.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
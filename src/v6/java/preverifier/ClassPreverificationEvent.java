@@ -0,0 +1,61 @@
+/**
+ * Copyright (c) 2010 Vít Šesták
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package v6.java.preverifier;
+
+import java.util.zip.ZipEntry;
+
+import v6.java.preverifier.results.PreverificationResults;
+
+/**
+ * The end of the preverification of a class as delivered to an
+ * {@link IBatchArchivePreverificationListener}.
+ */
+public class ClassPreverificationEvent {
+    private String archiveName;
+    private ZipEntry classEntry;
+    private PreverificationResults results;
+
+    /**
+     * Construct a new event.
+     *
+     * @param archiveName
+     * @param classEntry
+     * @param results
+     */
+    public ClassPreverificationEvent(String archiveName,
+            ZipEntry classEntry, PreverificationResults results) {
+        this.archiveName = archiveName;
+        this.classEntry = classEntry;
+        this.results = results;
+    }
+
+    /**
+     * Return the path of the archive of the class, which is
+     * <code>null</code> if the archive has been read from a stream.
+     *
+     * @return
+     */
+    public String getArchiveName() {
+        return archiveName;
+    }
+
+    /**
+     * @return Returns the classEntry.
+     */
+    public ZipEntry getClassEntry() {
+        return classEntry;
+    }
+
+    /**
+     * @return Returns the results.
+     */
+    public PreverificationResults getResults() {
+        return results;
+    }
+}
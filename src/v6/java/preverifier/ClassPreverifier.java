@@ -21,16 +21,20 @@
 package v6.java.preverifier;
 
 import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.util.BitSet;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.tree.MethodNode;
 
-import v6.enhancements.asm.ClassWriterEnhancement;
 import v6.java.preverifier.results.PreverificationError;
 import v6.java.preverifier.results.PreverificationResults;
 
@@ -47,6 +51,10 @@ public class ClassPreverifier {
     private static final int INVALID_FLAG = -1;
 
     private IPreverificationPolicy preverificationPolicy;
+    private PlatformHierarchy platformHierarchy;
+    private MissingClassReport missingClassReport;
+    private Executor prefetchExecutor;
+    private File indexDirectory;
 
     /**
      * Construct a new preverifier that uses the specified policy during
@@ -59,7 +67,100 @@ public class ClassPreverifier {
     }
 
     /**
-     * Preverify the specified class file.
+     * Return the platform hierarchy the platform types are resolved from or
+     * <code>null</code> if they are resolved from the classpath.
+     * 
+     * @return
+     */
+    public PlatformHierarchy getPlatformHierarchy() {
+        return platformHierarchy;
+    }
+
+    /**
+     * Set the platform hierarchy the platform types are resolved from, so
+     * the platform API archives need not be on the classpath. The value of
+     * <code>null</code> (the default) means that the platform types are
+     * resolved from the classpath only.
+     * 
+     * @param platformHierarchy
+     */
+    public void setPlatformHierarchy(PlatformHierarchy platformHierarchy) {
+        this.platformHierarchy = platformHierarchy;
+    }
+
+    /**
+     * Return the report the missing classes are recorded into or
+     * <code>null</code> if they are not recorded.
+     * 
+     * @return
+     */
+    public MissingClassReport getMissingClassReport() {
+        return missingClassReport;
+    }
+
+    /**
+     * Set the report the classes missing from the classpath are recorded
+     * into together with the classes referring to them. The classes are
+     * still reported as {@link PreverificationErrorType#MISSING_TYPE} errors
+     * of the preverified classes. The value of <code>null</code> (the
+     * default) means that the missing classes are not recorded.
+     * 
+     * @param missingClassReport
+     */
+    public void setMissingClassReport(MissingClassReport missingClassReport) {
+        this.missingClassReport = missingClassReport;
+    }
+
+    /**
+     * Return the executor the referenced types are prefetched on or
+     * <code>null</code> if they are not prefetched.
+     * 
+     * @return
+     */
+    public Executor getPrefetchExecutor() {
+        return prefetchExecutor;
+    }
+
+    /**
+     * Set the executor the types referred to by the constant pool of each
+     * class are resolved and validated on before the class is visited, so
+     * the classpath is read while the class is being preverified. The value
+     * of <code>null</code> (the default) means that the types are resolved
+     * by the visit as they are needed.
+     * 
+     * @param prefetchExecutor
+     */
+    public void setPrefetchExecutor(Executor prefetchExecutor) {
+        this.prefetchExecutor = prefetchExecutor;
+    }
+
+    /**
+     * Return the directory the indexes of the classpath archives are stored
+     * in or <code>null</code> if they are not stored.
+     * 
+     * @return
+     */
+    public File getIndexDirectory() {
+        return indexDirectory;
+    }
+
+    /**
+     * Set the directory the indexes of the classpath archives are stored in,
+     * so the classes of an archive are read again only when it changes. The
+     * stored indexes are trusted, so the directory should not be writable by
+     * others. The value of <code>null</code> (the default) means that the
+     * archives are indexed in memory only.
+     * 
+     * @param indexDirectory
+     */
+    public void setIndexDirectory(File indexDirectory) {
+        this.indexDirectory = indexDirectory;
+    }
+
+    /**
+     * Preverify the specified class file. A class loader of the classpath is
+     * created and closed for every call, so a {@link PreverificationSession}
+     * should be used for preverifying many classes.
      * 
      * @param classStream
      * @param classloader
@@ -70,7 +171,14 @@ public class ClassPreverifier {
             URL[] classpath) throws IOException {
         ClassLoader classLoader = new URLClassLoader(classpath, Thread
                 .currentThread().getContextClassLoader());
-        return preverify(classStream, classLoader);
+        try {
+            return preverify(classStream, classLoader);
+        } finally {
+            // Class loaders are closeable since Java 7
+            if (classLoader instanceof Closeable) {
+                ((Closeable) classLoader).close();
+            }
+        }
     }
 
     /**
@@ -109,16 +217,102 @@ public class ClassPreverifier {
                     "Class byte stream must not be null");
         }
 
-        PreverificationClassNode classNode = new PreverificationClassNode(
-                preverificationPolicy, classloader);
-
-        // Do the visitation
         ClassReader classReader = new ClassReader(classStream);
-
-        /* Don't skip the debug information in the class*/
-        classReader.accept(classNode, 0);
         classStream.close();
 
+        return preverify(classReader, classloader);
+    }
+
+    /**
+     * Preverify the specified class file contents. This avoids copying the
+     * contents when they are already available as an exactly sized array.
+     * 
+     * @param classBytes
+     * @param classloader
+     * @return
+     */
+    public PreverificationResults preverify(byte[] classBytes,
+            final ClassLoader classloader) {
+        if (classBytes == null) {
+            throw new IllegalArgumentException(
+                    "Class bytes must not be null");
+        }
+
+        return preverify(new ClassReader(classBytes), classloader);
+    }
+
+    /**
+     * Preverify the class read by the specified reader.
+     * 
+     * @param classReader
+     * @param classloader
+     * @return
+     */
+    private PreverificationResults preverify(ClassReader classReader,
+            final ClassLoader classloader) {
+        return preverify(classReader, classloader, TypeVerdictCache
+                .getInstance(classloader, platformHierarchy, indexDirectory));
+    }
+
+    /**
+     * Preverify the class read by the specified reader using the specified
+     * cache, which must belong to the class loader and to the platform
+     * hierarchy of this preverifier.
+     * 
+     * @param classReader
+     * @param classloader
+     * @param typeVerdicts
+     * @return
+     */
+    PreverificationResults preverify(ClassReader classReader,
+            ClassLoader classloader, TypeVerdictCache typeVerdicts) {
+        if (prefetchExecutor != null) {
+            typeVerdicts.prefetch(classReader, preverificationPolicy
+                    .isFloatingPointAllowed(), prefetchExecutor);
+        }
+
+        // The preverification writer does the real work, merging the frames
+        // using the class hierarchy of the classpath
+        PreverificationClassNode classNode = createClassNode(classloader,
+                typeVerdicts);
+        ClassWriter classWriter = new HierarchyClassWriter(INVALID_FLAG,
+                typeVerdicts.getCommonSuperclassTable());
+
+        /* Don't skip the debug information in the class, but skip the
+         * frames of a class preverified already, which are computed again
+         * by the writer */
+        PreverificationClassAdapter classAdapter = new PreverificationClassAdapter(
+                classNode, classWriter, null);
+        try {
+            classReader.accept(classAdapter, ClassReader.SKIP_FRAMES);
+
+            // Write the class again, inlining the subroutines
+            BitSet jsrMethods = classAdapter.getJsrMethods();
+            if (!classNode.hasError() && !jsrMethods.isEmpty()) {
+                classNode = createClassNode(classloader, typeVerdicts);
+                classWriter = new HierarchyClassWriter(INVALID_FLAG,
+                        typeVerdicts.getCommonSuperclassTable());
+                classAdapter = new PreverificationClassAdapter(classNode,
+                        classWriter, jsrMethods);
+                classReader.accept(classAdapter, ClassReader.SKIP_FRAMES);
+            }
+        } catch (RuntimeException e) {
+            // The writer fails if a class needed for merging the frames is
+            // missing, which is an error of the method being written
+            MissingTypeException missingType = getMissingTypeException(e);
+            MethodNode method = classAdapter.getLastMethod();
+
+            // The writer may fail before all the errors have been found,
+            // while the class is not written at all if it has any
+            classNode = createClassNode(classloader, typeVerdicts);
+            classReader.accept(classNode, ClassReader.SKIP_FRAMES);
+            if (missingType != null) {
+                classNode.addMissingTypeError(missingType, method);
+            } else if (!classNode.hasError()) {
+                throw e;
+            }
+        }
+
         // Collect the errors
         List<?> errorList = classNode.getErrorList();
         PreverificationError[] errorArray = errorList
@@ -129,15 +323,44 @@ public class ClassPreverifier {
         if (errorArray.length > 0) {
             results = new PreverificationResults(null, null, errorArray);
         } else {
-            // The preverification writer does the real work
-            ClassWriter classWriter = ClassWriterEnhancement.createClassWriter(INVALID_FLAG, classloader);
-            classNode.accept(classWriter);
-
             byte[] bytecode = classWriter.toByteArray();
-            results = new PreverificationResults(classNode, bytecode,
-                    errorArray);
+            results = new PreverificationResults(null, bytecode, errorArray);
         }
 
         return results;
     }
+
+    /**
+     * Return the exception signalling a missing type that is the specified
+     * exception or any of its causes, e.g. of an <code>AnalyzerException</code>
+     * wrapped by a method node, or <code>null</code> if there is none.
+     * 
+     * @param e
+     * @return
+     */
+    private MissingTypeException getMissingTypeException(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof MissingTypeException) {
+                return (MissingTypeException) cause;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Create a new node keeping the header and the errors of the class.
+     * 
+     * @param classloader
+     * @param typeVerdicts
+     * @return
+     */
+    private PreverificationClassNode createClassNode(ClassLoader classloader,
+            TypeVerdictCache typeVerdicts) {
+        PreverificationClassNode classNode = new PreverificationClassNode(
+                preverificationPolicy, classloader, typeVerdicts);
+        classNode.setMissingClassReport(missingClassReport);
+
+        return classNode;
+    }
 }
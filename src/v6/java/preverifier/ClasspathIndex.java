@@ -0,0 +1,454 @@
+/**
+ * Copyright (c) 2010 Vít Šesták
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package v6.java.preverifier;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * A source of the class information of a classpath that indexes the headers
+ * of all the classes of its archives. Looking up a class then costs a single
+ * map lookup no matter how many archives the classpath has. The classpath
+ * directories are not indexed, their class files are read directly.
+ * <p>
+ * If an index directory is given, the index of each archive is stored in a
+ * file of that directory, so the archive is only read again when it changes.
+ * A stored index is used only if it records the same path, size and
+ * modification time as the archive has. The files of the directory are
+ * trusted for the type verdicts, so it should not be writable by others.
+ * Without an index directory, the archives are indexed in memory only.
+ * </p>
+ * <p>
+ * Like the class loader, the index looks for the classes in the parent class
+ * loader first, then in the classpath entries in order.
+ * </p>
+ */
+class ClasspathIndex implements IClassInfoSource {
+
+    /** The suffix of the index files. */
+    static final String INDEX_FILE_SUFFIX = ".idx";
+
+    private static final int INDEX_VERSION = 1;
+    private static final String CLASS_SUFFIX = ".class";
+    private static final String META_INF_PREFIX = "META-INF/";
+
+    /**
+     * Return a boolean indicating whether the classpath of the specified
+     * class loader can be indexed, i.e. whether it is a plain
+     * {@link URLClassLoader} with a parent and local files only.
+     *
+     * @param classLoader
+     * @return
+     */
+    static boolean isIndexable(ClassLoader classLoader) {
+        if ((classLoader == null)
+                || (classLoader.getClass() != URLClassLoader.class)
+                || (classLoader.getParent() == null)) {
+            return false;
+        }
+
+        for (URL url : ((URLClassLoader) classLoader).getURLs()) {
+            if (getFile(url) == null) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Return the local file of the specified URL or <code>null</code> if
+     * there is none.
+     *
+     * @param url
+     * @return
+     */
+    static File getFile(URL url) {
+        if (!"file".equals(url.getProtocol())) {
+            return null;
+        }
+
+        try {
+            return new File(url.toURI());
+        } catch (URISyntaxException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private IClassInfoSource parentSource;
+    private File[] classpathFiles;
+    private File indexDirectory;
+
+    // The classpath entries in order, either class maps of the consecutive
+    // archives or directories
+    private List<Object> segments;
+
+    /**
+     * Construct a new index of the classpath of the specified class loader,
+     * which must be indexable. The archives are indexed when the first class
+     * is looked up.
+     *
+     * @param classLoader
+     * @param indexDirectory the directory the indexes are stored in or
+     *            <code>null</code> if they are not stored
+     * @see #isIndexable(ClassLoader)
+     */
+    ClasspathIndex(URLClassLoader classLoader, File indexDirectory) {
+        this.parentSource = new ClassLoaderClassInfoSource(classLoader
+                .getParent());
+        this.indexDirectory = indexDirectory;
+
+        URL[] urls = classLoader.getURLs();
+        classpathFiles = new File[urls.length];
+        for (int i = 0; i < urls.length; i++) {
+            classpathFiles[i] = getFile(urls[i]);
+        }
+    }
+
+    /**
+     * @see v6.java.preverifier.IClassInfoSource#getClassInfo(java.lang.String)
+     */
+    public ClassInfo getClassInfo(String internalName) {
+        ClassInfo classInfo = parentSource.getClassInfo(internalName);
+
+        if (classInfo == null) {
+            for (Object segment : getSegments()) {
+                if (segment instanceof File) {
+                    classInfo = readClassInfo(new File((File) segment,
+                            internalName + CLASS_SUFFIX));
+                } else {
+                    // The only other segments are the maps of the archives
+                    @SuppressWarnings("unchecked")
+                    Map<String, ClassInfo> archiveClasses = (Map<String, ClassInfo>) segment;
+                    classInfo = archiveClasses.get(internalName);
+                }
+
+                if (classInfo != null) {
+                    break;
+                }
+            }
+        }
+
+        return classInfo;
+    }
+
+    /**
+     * Return the classpath entries, indexing the archives if that has not
+     * been done yet.
+     *
+     * @return
+     */
+    private synchronized List<Object> getSegments() {
+        if (segments == null) {
+            segments = new ArrayList<Object>();
+
+            Map<String, ClassInfo> archiveClasses = null;
+            for (File file : classpathFiles) {
+                if (file.isDirectory()) {
+                    segments.add(file);
+                    archiveClasses = null;
+                } else if (file.isFile()) {
+                    if (archiveClasses == null) {
+                        archiveClasses = new HashMap<String, ClassInfo>();
+                        segments.add(archiveClasses);
+                    }
+
+                    // The first archive containing a class wins
+                    Map<String, ClassInfo> classes = getArchiveClasses(file);
+                    for (Map.Entry<String, ClassInfo> mapEntry : classes
+                            .entrySet()) {
+                        if (!archiveClasses.containsKey(mapEntry.getKey())) {
+                            archiveClasses.put(mapEntry.getKey(), mapEntry
+                                    .getValue());
+                        }
+                    }
+                }
+            }
+        }
+
+        return segments;
+    }
+
+    /**
+     * Return the classes of the specified archive keyed by their internal
+     * names. The stored index is used if it is up to date, otherwise the
+     * archive is indexed and the index is stored if there is an index
+     * directory.
+     *
+     * @param archive
+     * @return
+     */
+    private Map<String, ClassInfo> getArchiveClasses(File archive) {
+        if (indexDirectory == null) {
+            return indexArchive(archive);
+        }
+
+        File indexFile = getIndexFile(archive);
+
+        Map<String, ClassInfo> classes = readIndex(indexFile, archive);
+        if (classes == null) {
+            classes = indexArchive(archive);
+            writeIndex(indexFile, archive, classes);
+        }
+
+        return classes;
+    }
+
+    /**
+     * Return the index file of the specified archive, named after the hash of
+     * its absolute path.
+     *
+     * @param archive
+     * @return
+     */
+    private File getIndexFile(File archive) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available");
+        }
+
+        byte[] hash;
+        try {
+            hash = digest.digest(archive.getAbsolutePath().getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not available");
+        }
+
+        StringBuffer fileName = new StringBuffer(hash.length * 2
+                + INDEX_FILE_SUFFIX.length());
+        for (byte b : hash) {
+            fileName.append(Character.forDigit((b >> 4) & 0xF, 16));
+            fileName.append(Character.forDigit(b & 0xF, 16));
+        }
+        fileName.append(INDEX_FILE_SUFFIX);
+
+        return new File(indexDirectory, fileName.toString());
+    }
+
+    /**
+     * Read the stored index of the specified archive. Return
+     * <code>null</code> if there is no index or if it belongs to a different
+     * or modified archive.
+     *
+     * @param indexFile
+     * @param archive
+     * @return
+     */
+    private Map<String, ClassInfo> readIndex(File indexFile, File archive) {
+        if (!indexFile.isFile()) {
+            return null;
+        }
+
+        try {
+            DataInputStream input = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(indexFile)));
+            try {
+                if ((input.readInt() != INDEX_VERSION)
+                        || !input.readUTF().equals(archive.getAbsolutePath())
+                        || (input.readLong() != archive.length())
+                        || (input.readLong() != archive.lastModified())) {
+                    return null;
+                }
+
+                int classCount = input.readInt();
+                Map<String, ClassInfo> classes = new HashMap<String, ClassInfo>(
+                        classCount * 4 / 3 + 1);
+                for (int i = 0; i < classCount; i++) {
+                    String typeName = input.readUTF();
+                    String name = input.readUTF();
+                    String superName = input.readBoolean() ? input.readUTF()
+                            : null;
+                    String[] interfaces = new String[input.readInt()];
+                    for (int j = 0; j < interfaces.length; j++) {
+                        interfaces[j] = input.readUTF();
+                    }
+                    int access = input.readInt();
+
+                    classes.put(typeName, new ClassInfo(name, superName,
+                            interfaces, access));
+                }
+
+                return classes;
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            // The archive is indexed again
+            return null;
+        }
+    }
+
+    /**
+     * Store the index of the specified archive. The index is written into a
+     * temporary file first, so other processes never see a partial index. A
+     * failure is ignored, the archive is then indexed again next time.
+     *
+     * @param indexFile
+     * @param archive
+     * @param classes
+     */
+    private void writeIndex(File indexFile, File archive,
+            Map<String, ClassInfo> classes) {
+        File indexDirectory = indexFile.getParentFile();
+        if (!indexDirectory.isDirectory() && !indexDirectory.mkdirs()) {
+            return;
+        }
+
+        try {
+            File temporaryFile = File.createTempFile("index", ".tmp",
+                    indexDirectory);
+            try {
+                DataOutputStream output = new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(
+                                temporaryFile)));
+                try {
+                    output.writeInt(INDEX_VERSION);
+                    output.writeUTF(archive.getAbsolutePath());
+                    output.writeLong(archive.length());
+                    output.writeLong(archive.lastModified());
+
+                    output.writeInt(classes.size());
+                    for (Map.Entry<String, ClassInfo> mapEntry : classes
+                            .entrySet()) {
+                        ClassInfo classInfo = mapEntry.getValue();
+                        output.writeUTF(mapEntry.getKey());
+                        output.writeUTF(classInfo.getName());
+                        output.writeBoolean(classInfo.getSuperName() != null);
+                        if (classInfo.getSuperName() != null) {
+                            output.writeUTF(classInfo.getSuperName());
+                        }
+                        output.writeInt(classInfo.getInterfaces().length);
+                        for (String interfaceName : classInfo.getInterfaces()) {
+                            output.writeUTF(interfaceName);
+                        }
+                        output.writeInt(classInfo.getAccess());
+                    }
+                } finally {
+                    output.close();
+                }
+
+                indexFile.delete();
+                temporaryFile.renameTo(indexFile);
+            } finally {
+                temporaryFile.delete();
+            }
+        } catch (IOException e) {
+            // The index is only kept in memory
+        }
+    }
+
+    /**
+     * Read the headers of all the classes of the specified archive. The
+     * classes that cannot be read are left out, just like the class loader
+     * would not find them.
+     *
+     * @param archive
+     * @return
+     */
+    private Map<String, ClassInfo> indexArchive(File archive) {
+        Map<String, ClassInfo> classes = new HashMap<String, ClassInfo>();
+
+        try {
+            ZipFile zipFile = new ZipFile(archive);
+            try {
+                Enumeration<? extends ZipEntry> entries = zipFile.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    String entryName = entry.getName();
+                    if (entry.isDirectory()
+                            || !entryName.endsWith(CLASS_SUFFIX)
+                            || entryName.startsWith(META_INF_PREFIX)) {
+                        continue;
+                    }
+
+                    ClassInfo classInfo = readClassInfo(zipFile, entry);
+                    if (classInfo != null) {
+                        classes.put(entryName.substring(0, entryName.length()
+                                - CLASS_SUFFIX.length()), classInfo);
+                    }
+                }
+            } finally {
+                zipFile.close();
+            }
+        } catch (IOException e) {
+            // The class loader cannot read the archive either
+        }
+
+        return classes;
+    }
+
+    /**
+     * Read the header of the specified archive entry or return
+     * <code>null</code> if it is not a class file.
+     *
+     * @param zipFile
+     * @param entry
+     * @return
+     * @throws IOException if the archive cannot be read
+     */
+    private ClassInfo readClassInfo(ZipFile zipFile, ZipEntry entry)
+            throws IOException {
+        InputStream classStream = zipFile.getInputStream(entry);
+        try {
+            return ClassInfo.read(classStream);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            classStream.close();
+        }
+    }
+
+    /**
+     * Read the header of the specified class file or return
+     * <code>null</code> if it does not exist or cannot be read.
+     *
+     * @param classFile
+     * @return
+     */
+    private ClassInfo readClassInfo(File classFile) {
+        if (!classFile.isFile()) {
+            return null;
+        }
+
+        try {
+            InputStream classStream = new FileInputStream(classFile);
+            try {
+                return ClassInfo.read(classStream);
+            } finally {
+                classStream.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/**
+ * Copyright (c) 2010 Vít Šesták
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package v6.java.preverifier;
+
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A table of the common superclasses of the pairs of classes, answering the
+ * questions asked when the stack map frames are merged. The result for each
+ * pair of class IDs of a {@link TypeTable} is remembered, so the superclass
+ * chains are walked only once per pair. Only a limited number of the most
+ * recently used results is kept.
+ * <p>
+ * The common superclass is defined in the same way as by
+ * {@link org.objectweb.asm.ClassWriter#getCommonSuperClass(String, String)}:
+ * if one of the classes is assignable to the other one, it is the other one.
+ * Otherwise, it is <code>java/lang/Object</code> if any of them is an
+ * interface or the nearest common class of their superclass chains if none
+ * of them is. The table can be used by several threads at once.
+ * </p>
+ */
+class CommonSuperclassTable {
+
+    /** The default number of the results kept. */
+    static final int DEFAULT_CAPACITY = 4096;
+
+    private static final String OBJECT_NAME = "java/lang/Object";
+
+    private ClassHierarchy classHierarchy;
+    private TypeTable typeTable;
+    private int objectId;
+    private Map<Long, Integer> results;
+
+    /**
+     * Construct a new table of the specified hierarchy and type table with
+     * the default capacity.
+     *
+     * @param classHierarchy
+     * @param typeTable
+     */
+    CommonSuperclassTable(ClassHierarchy classHierarchy, TypeTable typeTable) {
+        this(classHierarchy, typeTable, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Construct a new table of the specified hierarchy and type table
+     * keeping at most the specified number of results.
+     *
+     * @param classHierarchy
+     * @param typeTable
+     * @param capacity
+     */
+    CommonSuperclassTable(ClassHierarchy classHierarchy, TypeTable typeTable,
+            final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+
+        this.classHierarchy = classHierarchy;
+        this.typeTable = typeTable;
+        this.objectId = typeTable.getClassId(OBJECT_NAME);
+        this.results = new LinkedHashMap<Long, Integer>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Integer> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Return the table of the types the IDs belong to.
+     *
+     * @return
+     */
+    TypeTable getTypeTable() {
+        return typeTable;
+    }
+
+    /**
+     * Return the internal name of the common superclass of the classes with
+     * the specified internal names.
+     *
+     * @param className1
+     * @param className2
+     * @return
+     * @throws MissingTypeException if any class needed cannot be found
+     */
+    String getCommonSuperclass(String className1, String className2) {
+        return typeTable.getInternalName(getCommonSuperclassId(typeTable
+                .getClassId(className1), typeTable.getClassId(className2)));
+    }
+
+    /**
+     * Return the ID of the common superclass of the specified classes. The
+     * failures are not remembered.
+     *
+     * @param classId1
+     * @param classId2
+     * @return
+     * @throws MissingTypeException if any class needed cannot be found
+     */
+    int getCommonSuperclassId(int classId1, int classId2) {
+        if (classId1 == classId2) {
+            return classId1;
+        }
+
+        // The common superclass does not depend on the order of the classes
+        Long key = Long.valueOf(((long) Math.min(classId1, classId2) << 32)
+                | Math.max(classId1, classId2));
+
+        Integer result;
+        synchronized (results) {
+            result = results.get(key);
+        }
+
+        if (result == null) {
+            result = Integer.valueOf(resolveCommonSuperclassId(classId1,
+                    classId2));
+            synchronized (results) {
+                results.put(key, result);
+            }
+        }
+
+        return result.intValue();
+    }
+
+    /**
+     * Return the ID of the common superclass of the specified different
+     * classes without using the remembered results.
+     *
+     * @param classId1
+     * @param classId2
+     * @return
+     */
+    private int resolveCommonSuperclassId(int classId1, int classId2) {
+        // Like a class loader, the whole superclass chains must be found
+        checkSuperclasses(classId1);
+        checkSuperclasses(classId2);
+
+        boolean interface1 = getClassInfo(classId1).isInterface();
+        boolean interface2 = getClassInfo(classId2).isInterface();
+        if (interface1 || interface2) {
+            if (interface1 && implementsInterface(classId2, classId1)) {
+                return classId1;
+            } else if (interface2 && implementsInterface(classId1, classId2)) {
+                return classId2;
+            }
+
+            return objectId;
+        }
+
+        // Mark the superclass chain of the second class
+        BitSet superclassIds = new BitSet();
+        for (int classId = classId2; (classId >= 0)
+                && !superclassIds.get(classId); classId = typeTable
+                .getSuperclassId(classId)) {
+            superclassIds.set(classId);
+        }
+
+        // The first class of the other chain that has been marked
+        BitSet visitedIds = new BitSet();
+        for (int classId = classId1; (classId >= 0)
+                && !visitedIds.get(classId); classId = typeTable
+                .getSuperclassId(classId)) {
+            if (superclassIds.get(classId)) {
+                return classId;
+            }
+            visitedIds.set(classId);
+        }
+
+        return objectId;
+    }
+
+    /**
+     * Check that the whole superclass chain of the specified class can be
+     * found.
+     *
+     * @param classId
+     * @throws MissingTypeException if any superclass cannot be found
+     */
+    private void checkSuperclasses(int classId) {
+        String missingClass = typeTable.getMissingClass(classId);
+        if (missingClass != null) {
+            throw new MissingTypeException(missingClass);
+        }
+    }
+
+    /**
+     * Return a boolean indicating whether the specified interface is one of
+     * the superclasses or the superinterfaces of the specified class.
+     *
+     * @param classId
+     * @param interfaceId
+     * @return
+     * @throws MissingTypeException if any class needed cannot be found
+     */
+    private boolean implementsInterface(int classId, int interfaceId) {
+        BitSet visitedIds = new BitSet();
+        int[] pendingIds = new int[16];
+        int pendingCount = 0;
+        pendingIds[pendingCount++] = classId;
+
+        while (pendingCount > 0) {
+            int id = pendingIds[--pendingCount];
+            if (id == interfaceId) {
+                return true;
+            } else if (visitedIds.get(id)) {
+                continue;
+            }
+            visitedIds.set(id);
+
+            ClassInfo classInfo = getClassInfo(id);
+            if (classInfo == null) {
+                throw new MissingTypeException(typeTable.getInternalName(id));
+            }
+
+            String[] interfaces = classInfo.getInterfaces();
+            int required = pendingCount + interfaces.length + 1;
+            if (required > pendingIds.length) {
+                int[] newPendingIds = new int[Math.max(required,
+                        pendingIds.length * 2)];
+                System.arraycopy(pendingIds, 0, newPendingIds, 0,
+                        pendingCount);
+                pendingIds = newPendingIds;
+            }
+
+            for (String interfaceName : interfaces) {
+                pendingIds[pendingCount++] = typeTable
+                        .getClassId(interfaceName);
+            }
+            if (classInfo.getSuperName() != null) {
+                pendingIds[pendingCount++] = typeTable.getClassId(classInfo
+                        .getSuperName());
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Return the information about the specified class or <code>null</code>
+     * if it cannot be found.
+     *
+     * @param classId
+     * @return
+     */
+    private ClassInfo getClassInfo(int classId) {
+        return classHierarchy.getClassInfo(typeTable.getInternalName(classId));
+    }
+}
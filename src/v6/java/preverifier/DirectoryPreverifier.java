@@ -0,0 +1,1042 @@
+/**
+ * Copyright (c) 2010 Vít Šesták
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package v6.java.preverifier;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+
+import org.objectweb.asm.ClassReader;
+
+import v6.java.preverifier.results.PreverificationResults;
+
+/**
+ * A preverifier of an exploded class tree. The classes of the input directory
+ * are preverified into the same paths of the output directory and the other
+ * files are copied there, so the output directory mirrors the input
+ * directory. Both the directory tree walk and the preverification are done by
+ * a pool of worker threads.
+ * <p>
+ * The state of the input files is saved into a state file after each run.
+ * The next run skips the files whose size and modification time are the same
+ * or whose contents have the same hash, unless they are classes with a
+ * changed supertype in the directory. The files removed from the input
+ * directory are removed from the output directory as well. If the classpath,
+ * the platform hierarchy or the policy has changed, everything is
+ * preverified again.
+ * The input directory may be on the classpath too, so that its classes can
+ * resolve each other. Its changes are then tracked per file as above. The
+ * output directory may be inside the input directory, it is then left out
+ * of the input.
+ * </p>
+ * <p>
+ * The listener is notified of the preverified classes only, with a
+ * <code>null</code> archive and an entry named by the path of the class
+ * relative to the input directory. The callbacks come from the worker threads
+ * in no particular order, but they are never called concurrently.
+ * </p>
+ */
+public class DirectoryPreverifier {
+
+    /** The name of the default state file in the output directory. */
+    public static final String STATE_FILE_NAME = ".preverifier.state";
+
+    private static final int STATE_VERSION = 4;
+    private static final String CLASS_SUFFIX = ".class";
+
+    /** The state of an input file as recorded after its processing. */
+    private static class FileState {
+        private long size;
+        private long lastModified;
+        private String hash;
+        private String[] supertypes;
+    }
+
+    /** A file found by the tree walk. */
+    private static class ScannedFile {
+        private String path;
+        private File file;
+        private FileState state;
+        private boolean changed;
+    }
+
+    /** A set of tasks run by the executor or on the calling thread. */
+    private static class TaskQueue {
+        private ExecutorService executor;
+        private ConcurrentLinkedQueue<Future<Object>> tasks;
+
+        /**
+         * Construct a new task queue.
+         *
+         * @param executor the executor or <code>null</code> to run the tasks
+         *            on the calling thread
+         */
+        TaskQueue(ExecutorService executor) {
+            this.executor = executor;
+            this.tasks = new ConcurrentLinkedQueue<Future<Object>>();
+        }
+
+        /**
+         * Submit the task. The task may submit other tasks.
+         *
+         * @param task
+         * @throws IOException
+         */
+        void submit(Callable<Object> task) throws IOException {
+            if (executor == null) {
+                try {
+                    task.call();
+                } catch (IOException e) {
+                    throw e;
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw rethrow(e);
+                }
+            } else {
+                tasks.add(executor.submit(task));
+            }
+        }
+
+        /**
+         * Wait for all the submitted tasks to finish, including the tasks
+         * submitted by them.
+         *
+         * @throws IOException
+         */
+        void await() throws IOException {
+            Future<Object> task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException(
+                            "Interrupted while preverifying directory");
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw rethrow(cause);
+                }
+            }
+        }
+
+        /**
+         * Wrap the unexpected failure of a task.
+         *
+         * @param cause
+         * @return
+         */
+        private IOException rethrow(Throwable cause) {
+            IOException ioException = new IOException(
+                    "Unable to preverify directory");
+            ioException.initCause(cause);
+            return ioException;
+        }
+    }
+
+    private IPreverificationPolicy preverificationPolicy;
+    private IArchivePreverificationListener listener;
+    private int threadCount;
+    private File stateFile;
+    private PlatformHierarchy platformHierarchy;
+    private MissingClassReport missingClassReport;
+    private File indexDirectory;
+
+    /**
+     * Create a new directory preverifier with the specified policy and
+     * listener.
+     *
+     * @param preverificationPolicy
+     * @param listener
+     */
+    public DirectoryPreverifier(IPreverificationPolicy preverificationPolicy,
+            IArchivePreverificationListener listener) {
+        super();
+
+        this.preverificationPolicy = preverificationPolicy;
+        this.listener = (listener == null) ? new NullArchivePreverificationListener()
+                : listener;
+        this.threadCount = Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Return the number of threads used for walking the tree and
+     * preverifying the classes.
+     *
+     * @return
+     */
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     * Set the number of threads used for walking the tree and preverifying
+     * the classes. It defaults to the number of available processors. The
+     * value of 1 means that all the work is done on the calling thread.
+     *
+     * @param threadCount
+     * @throws IllegalArgumentException if threadCount is less than 1
+     */
+    public void setThreadCount(int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException(
+                    "Thread count must be at least 1");
+        }
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * Return the file the state of the input files is saved into or
+     * <code>null</code> if the default {@link #STATE_FILE_NAME} file in the
+     * output directory is used.
+     *
+     * @return
+     */
+    public File getStateFile() {
+        return stateFile;
+    }
+
+    /**
+     * Set the file the state of the input files is saved into. If
+     * <code>null</code> (the default), the {@link #STATE_FILE_NAME} file in
+     * the output directory is used.
+     *
+     * @param stateFile
+     */
+    public void setStateFile(File stateFile) {
+        this.stateFile = stateFile;
+    }
+
+    /**
+     * Return the platform hierarchy the platform types are resolved from or
+     * <code>null</code> if they are resolved from the classpath.
+     *
+     * @return
+     */
+    public PlatformHierarchy getPlatformHierarchy() {
+        return platformHierarchy;
+    }
+
+    /**
+     * Set the platform hierarchy the platform types are resolved from instead
+     * of the platform API archives on the classpath.
+     *
+     * @param platformHierarchy the platform or <code>null</code> (the
+     *            default)
+     * @see ClassPreverifier#setPlatformHierarchy(PlatformHierarchy)
+     */
+    public void setPlatformHierarchy(PlatformHierarchy platformHierarchy) {
+        this.platformHierarchy = platformHierarchy;
+    }
+
+    /**
+     * Return the report the missing classes are recorded into or
+     * <code>null</code> if they are not recorded.
+     *
+     * @return
+     */
+    public MissingClassReport getMissingClassReport() {
+        return missingClassReport;
+    }
+
+    /**
+     * Set the report the classes missing from the classpath are recorded
+     * into.
+     *
+     * @param missingClassReport the report or <code>null</code> (the
+     *            default)
+     * @see ClassPreverifier#setMissingClassReport(MissingClassReport)
+     */
+    public void setMissingClassReport(MissingClassReport missingClassReport) {
+        this.missingClassReport = missingClassReport;
+    }
+
+    /**
+     * Return the directory the indexes of the classpath archives are stored
+     * in or <code>null</code> if they are not stored.
+     *
+     * @return
+     */
+    public File getIndexDirectory() {
+        return indexDirectory;
+    }
+
+    /**
+     * Set the directory the indexes of the classpath archives are stored in.
+     *
+     * @param indexDirectory the directory or <code>null</code> (the default)
+     * @see ClassPreverifier#setIndexDirectory(File)
+     */
+    public void setIndexDirectory(File indexDirectory) {
+        this.indexDirectory = indexDirectory;
+    }
+
+    /**
+     * Preverify the classes of the input directory into the output directory
+     * using the specified classpath.
+     *
+     * @param inputDirectory
+     * @param outputDirectory
+     * @param classpath
+     * @throws IOException
+     */
+    public void preverify(File inputDirectory, File outputDirectory,
+            URL[] classpath) throws IOException {
+        if ((inputDirectory == null) || !inputDirectory.isDirectory()) {
+            throw new IllegalArgumentException(
+                    "Input directory must not be null or does not exist");
+        }
+        if (outputDirectory == null) {
+            throw new IllegalArgumentException(
+                    "Output directory must not be null");
+        }
+        File canonicalInputDirectory = inputDirectory.getCanonicalFile();
+        if (canonicalInputDirectory.equals(outputDirectory.getCanonicalFile())) {
+            throw new IllegalArgumentException(
+                    "Output directory must not be the input directory");
+        }
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + outputDirectory);
+        }
+        String outputPath = getRelativePath(canonicalInputDirectory,
+                outputDirectory.getCanonicalFile());
+
+        File actualStateFile = (stateFile == null) ? new File(
+                outputDirectory, STATE_FILE_NAME) : stateFile;
+        long startTime = System.currentTimeMillis();
+        Map<String, FileState> previousStates = readState(actualStateFile,
+                classpath, canonicalInputDirectory);
+
+        ClassLoader classLoader = new URLClassLoader(classpath, Thread
+                .currentThread().getContextClassLoader());
+        ClassPreverifier classPreverifier = new ClassPreverifier(
+                preverificationPolicy);
+        classPreverifier.setPlatformHierarchy(platformHierarchy);
+        classPreverifier.setMissingClassReport(missingClassReport);
+        classPreverifier.setIndexDirectory(indexDirectory);
+        ExecutorService executor = (threadCount > 1) ? Executors
+                .newFixedThreadPool(threadCount) : null;
+
+        Map<String, FileState> states = new ConcurrentHashMap<String, FileState>();
+        try {
+            Map<String, ScannedFile> scannedFiles = scan(inputDirectory,
+                    outputPath, previousStates, executor);
+            markChangedSubtypes(scannedFiles, previousStates);
+
+            // Start me up...
+            listener.fileBegin(null);
+            process(scannedFiles, outputDirectory, classPreverifier,
+                    classLoader, states, executor);
+            removeDeletedFiles(previousStates, scannedFiles, outputDirectory);
+
+            // All done...
+            listener.fileEnd(null);
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+
+            // Class loaders are closeable since Java 7
+            if (classLoader instanceof Closeable) {
+                ((Closeable) classLoader).close();
+            }
+            writeState(actualStateFile, classpath, startTime, states);
+        }
+    }
+
+    /**
+     * Return the path of the specified canonical directory relative to the
+     * canonical input directory, ending with a slash, or <code>null</code>
+     * if the directory is not inside the input directory.
+     *
+     * @param inputDirectory
+     * @param directory
+     * @return
+     */
+    private String getRelativePath(File inputDirectory, File directory) {
+        String path = "";
+        for (File file = directory; file != null; file = file.getParentFile()) {
+            if (file.equals(inputDirectory)) {
+                return (path.length() > 0) ? path : null;
+            }
+            path = file.getName() + "/" + path;
+        }
+
+        return null;
+    }
+
+    /**
+     * Walk the input directory tree and find out which of the files have
+     * changed since the previous run.
+     *
+     * @param inputDirectory
+     * @param excludedPath the relative path of the directory left out of the
+     *            walk, ending with a slash, or <code>null</code>
+     * @param previousStates
+     * @param executor
+     * @return the found files keyed by their relative paths
+     * @throws IOException
+     */
+    private Map<String, ScannedFile> scan(File inputDirectory,
+            String excludedPath, final Map<String, FileState> previousStates,
+            ExecutorService executor) throws IOException {
+        final Map<String, ScannedFile> scannedFiles = new ConcurrentHashMap<String, ScannedFile>();
+        final TaskQueue tasks = new TaskQueue(executor);
+
+        tasks.submit(new DirectoryScan(inputDirectory, "", excludedPath,
+                previousStates, scannedFiles, tasks));
+        tasks.await();
+
+        return scannedFiles;
+    }
+
+    /** The task scanning a single directory of the tree. */
+    private class DirectoryScan implements Callable<Object> {
+        private File directory;
+        private String path;
+        private String excludedPath;
+        private Map<String, FileState> previousStates;
+        private Map<String, ScannedFile> scannedFiles;
+        private TaskQueue tasks;
+
+        /**
+         * Construct a new directory scan.
+         *
+         * @param directory
+         * @param path the path of the directory relative to the input
+         *            directory, ending with a slash unless empty
+         * @param excludedPath the relative path of the directory left out
+         *            of the walk or <code>null</code>
+         * @param previousStates
+         * @param scannedFiles
+         * @param tasks
+         */
+        DirectoryScan(File directory, String path, String excludedPath,
+                Map<String, FileState> previousStates,
+                Map<String, ScannedFile> scannedFiles, TaskQueue tasks) {
+            this.directory = directory;
+            this.path = path;
+            this.excludedPath = excludedPath;
+            this.previousStates = previousStates;
+            this.scannedFiles = scannedFiles;
+            this.tasks = tasks;
+        }
+
+        public Object call() throws IOException {
+            File[] files = directory.listFiles();
+            if (files == null) {
+                throw new IOException("Unable to list " + directory);
+            }
+
+            for (File file : files) {
+                String filePath = path + file.getName();
+                if (file.isDirectory()) {
+                    String directoryPath = filePath + "/";
+                    if (!directoryPath.equals(excludedPath)) {
+                        tasks.submit(new DirectoryScan(file, directoryPath,
+                                excludedPath, previousStates, scannedFiles,
+                                tasks));
+                    }
+                } else {
+                    scannedFiles.put(filePath, scanFile(file, filePath,
+                            previousStates.get(filePath)));
+                }
+            }
+
+            return null;
+        }
+    }
+
+    /**
+     * Find out whether the specified file has changed since the previous run.
+     * The contents of the file are read only if its size is the same but its
+     * modification time differs.
+     *
+     * @param file
+     * @param path
+     * @param previousState the state of the previous run or
+     *            <code>null</code> if the file is new
+     * @return
+     * @throws IOException
+     */
+    private ScannedFile scanFile(File file, String path,
+            FileState previousState) throws IOException {
+        ScannedFile scannedFile = new ScannedFile();
+        scannedFile.path = path;
+        scannedFile.file = file;
+        scannedFile.state = new FileState();
+        scannedFile.state.size = file.length();
+        scannedFile.state.lastModified = file.lastModified();
+        scannedFile.changed = true;
+
+        if ((previousState != null)
+                && (previousState.size == scannedFile.state.size)) {
+            if (previousState.lastModified == scannedFile.state.lastModified) {
+                scannedFile.changed = false;
+            } else {
+                String hash = computeHash(readFile(file));
+                scannedFile.changed = !hash.equals(previousState.hash);
+            }
+
+            if (!scannedFile.changed) {
+                scannedFile.state.hash = previousState.hash;
+                scannedFile.state.supertypes = previousState.supertypes;
+            }
+        }
+
+        return scannedFile;
+    }
+
+    /**
+     * Mark the unchanged classes as changed if any of their direct or
+     * indirect supertypes in the directory has been added, removed or
+     * modified.
+     *
+     * @param scannedFiles
+     * @param previousStates
+     */
+    private void markChangedSubtypes(Map<String, ScannedFile> scannedFiles,
+            Map<String, FileState> previousStates) {
+        Set<String> changedTypes = new HashSet<String>();
+        for (ScannedFile scannedFile : scannedFiles.values()) {
+            if (scannedFile.changed && isClassPath(scannedFile.path)) {
+                changedTypes.add(getTypeName(scannedFile.path));
+            }
+        }
+        for (String path : previousStates.keySet()) {
+            if (!scannedFiles.containsKey(path) && isClassPath(path)) {
+                changedTypes.add(getTypeName(path));
+            }
+        }
+
+        if (changedTypes.isEmpty()) {
+            return;
+        }
+
+        Map<String, Boolean> results = new HashMap<String, Boolean>();
+        for (ScannedFile scannedFile : scannedFiles.values()) {
+            if (!scannedFile.changed && isClassPath(scannedFile.path)) {
+                scannedFile.changed = hasChangedSupertype(
+                        getTypeName(scannedFile.path), scannedFiles,
+                        changedTypes, results);
+            }
+        }
+    }
+
+    /**
+     * Return a boolean indicating whether any of the direct or indirect
+     * supertypes of the specified unchanged type has changed.
+     *
+     * @param typeName
+     * @param scannedFiles
+     * @param changedTypes
+     * @param results the results computed so far
+     * @return
+     */
+    private boolean hasChangedSupertype(String typeName,
+            Map<String, ScannedFile> scannedFiles, Set<String> changedTypes,
+            Map<String, Boolean> results) {
+        Boolean result = results.get(typeName);
+        if (result != null) {
+            return result.booleanValue();
+        }
+
+        // Guard against cycles in broken hierarchies
+        results.put(typeName, Boolean.TRUE);
+
+        boolean changed = false;
+        ScannedFile scannedFile = scannedFiles.get(typeName + CLASS_SUFFIX);
+        if ((scannedFile != null) && !changedTypes.contains(typeName)) {
+            String[] supertypes = scannedFile.state.supertypes;
+            for (int i = 0; !changed && (i < supertypes.length); i++) {
+                changed = changedTypes.contains(supertypes[i])
+                        || hasChangedSupertype(supertypes[i], scannedFiles,
+                                changedTypes, results);
+            }
+        }
+
+        results.put(typeName, Boolean.valueOf(changed));
+        return changed;
+    }
+
+    /**
+     * Preverify or copy all the changed files into the output directory and
+     * record the state of all the files that have been handled successfully.
+     *
+     * @param scannedFiles
+     * @param outputDirectory
+     * @param classPreverifier
+     * @param classLoader
+     * @param states
+     * @param executor
+     * @throws IOException
+     */
+    private void process(Map<String, ScannedFile> scannedFiles,
+            final File outputDirectory,
+            final ClassPreverifier classPreverifier,
+            final ClassLoader classLoader,
+            final Map<String, FileState> states, ExecutorService executor)
+            throws IOException {
+        TaskQueue tasks = new TaskQueue(executor);
+
+        for (final ScannedFile scannedFile : scannedFiles.values()) {
+            final File outputFile = getOutputFile(outputDirectory,
+                    scannedFile.path);
+
+            if (!scannedFile.changed && outputFile.exists()) {
+                states.put(scannedFile.path, scannedFile.state);
+            } else {
+                tasks.submit(new Callable<Object>() {
+                    public Object call() throws IOException {
+                        if (processFile(scannedFile, outputFile,
+                                classPreverifier, classLoader)) {
+                            states.put(scannedFile.path, scannedFile.state);
+                        }
+                        return null;
+                    }
+                });
+            }
+        }
+
+        tasks.await();
+    }
+
+    /**
+     * Preverify or copy the specified file into the output file. Return a
+     * boolean indicating whether the output file has been written.
+     *
+     * @param scannedFile
+     * @param outputFile
+     * @param classPreverifier
+     * @param classLoader
+     * @return
+     * @throws IOException
+     */
+    private boolean processFile(ScannedFile scannedFile, File outputFile,
+            ClassPreverifier classPreverifier, ClassLoader classLoader)
+            throws IOException {
+        byte[] contents = readFile(scannedFile.file);
+        FileState state = scannedFile.state;
+        state.hash = computeHash(contents);
+        state.supertypes = new String[0];
+
+        if (!isClassPath(scannedFile.path)) {
+            writeFile(outputFile, contents);
+            return true;
+        }
+
+        ZipEntry classEntry = new ZipEntry(scannedFile.path);
+        classEntry.setSize(state.size);
+        classEntry.setTime(state.lastModified);
+
+        boolean keepGoing;
+        synchronized (listener) {
+            keepGoing = listener.classBegin(null, classEntry);
+        }
+        if (!keepGoing) {
+            // The output of the previous run is not current any more
+            outputFile.delete();
+            return false;
+        }
+
+        state.supertypes = getSupertypes(contents);
+        PreverificationResults results = classPreverifier.preverify(contents,
+                classLoader);
+        boolean written = !results.isErrorResult();
+        if (written) {
+            writeFile(outputFile, results.getPreverifiedClassBytes());
+        } else {
+            outputFile.delete();
+        }
+
+        synchronized (listener) {
+            listener.classEnd(null, classEntry, results);
+        }
+
+        return written;
+    }
+
+    /**
+     * Remove the output files of the input files that have been removed
+     * since the previous run.
+     *
+     * @param previousStates
+     * @param scannedFiles
+     * @param outputDirectory
+     */
+    private void removeDeletedFiles(Map<String, FileState> previousStates,
+            Map<String, ScannedFile> scannedFiles, File outputDirectory) {
+        for (String path : previousStates.keySet()) {
+            if (!scannedFiles.containsKey(path)) {
+                getOutputFile(outputDirectory, path).delete();
+            }
+        }
+    }
+
+    /**
+     * Return the direct supertypes of the class or an empty array if the
+     * class cannot be parsed.
+     *
+     * @param classBytes
+     * @return
+     */
+    private String[] getSupertypes(byte[] classBytes) {
+        try {
+            ClassReader header = new ClassReader(classBytes);
+            String superName = header.getSuperName();
+            String[] interfaces = header.getInterfaces();
+
+            List<String> supertypes = new ArrayList<String>(Arrays
+                    .asList(interfaces));
+            if (superName != null) {
+                supertypes.add(superName);
+            }
+
+            return supertypes.toArray(new String[supertypes.size()]);
+        } catch (RuntimeException e) {
+            // The preverifier reports the class as broken
+            return new String[0];
+        }
+    }
+
+    /**
+     * Return the output file of the specified relative path.
+     *
+     * @param outputDirectory
+     * @param path
+     * @return
+     */
+    private File getOutputFile(File outputDirectory, String path) {
+        return new File(outputDirectory, path.replace('/', File.separatorChar));
+    }
+
+    /**
+     * Return a boolean indicating whether the specified relative path is a
+     * class to be preverified.
+     *
+     * @param path
+     * @return
+     */
+    private boolean isClassPath(String path) {
+        return path.endsWith(CLASS_SUFFIX);
+    }
+
+    /**
+     * Return the internal name of the class at the specified relative path.
+     *
+     * @param path
+     * @return
+     */
+    private String getTypeName(String path) {
+        return path.substring(0, path.length() - CLASS_SUFFIX.length());
+    }
+
+    /**
+     * Return the hexadecimal SHA-1 hash of the specified contents.
+     *
+     * @param contents
+     * @return
+     */
+    private String computeHash(byte[] contents) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available");
+        }
+
+        byte[] hash = digest.digest(contents);
+        StringBuffer hexHash = new StringBuffer(hash.length * 2);
+        for (byte b : hash) {
+            hexHash.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hexHash.append(Character.forDigit(b & 0xF, 16));
+        }
+
+        return hexHash.toString();
+    }
+
+    /**
+     * Read the whole contents of the specified file.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    private byte[] readFile(File file) throws IOException {
+        InputStream is = new FileInputStream(file);
+        try {
+            byte[] contents = new byte[(int) file.length()];
+            int length = 0;
+            while (length < contents.length) {
+                int bytesRead = is.read(contents, length, contents.length
+                        - length);
+                if (bytesRead < 0) {
+                    throw new EOFException("Unexpected end of " + file);
+                }
+                length += bytesRead;
+            }
+
+            return contents;
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Write the contents into the specified file, creating its directory as
+     * necessary.
+     *
+     * @param file
+     * @param contents
+     * @throws IOException
+     */
+    private void writeFile(File file, byte[] contents) throws IOException {
+        File directory = file.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()
+                && !directory.isDirectory()) {
+            throw new IOException("Unable to create " + directory);
+        }
+
+        OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(contents);
+        } finally {
+            os.close();
+        }
+    }
+
+    /**
+     * Read the states of the files recorded by the previous run. Return an
+     * empty map if there is no usable state, i.e. if the state file does not
+     * exist or cannot be read, or if the classpath, the platform hierarchy
+     * or the policy differs or if the classpath has been modified since the
+     * previous run.
+     *
+     * @param stateFile
+     * @param classpath
+     * @param inputDirectory the canonical input directory
+     * @return
+     */
+    private Map<String, FileState> readState(File stateFile,
+            URL[] classpath, File inputDirectory) {
+        Map<String, FileState> states = new HashMap<String, FileState>();
+        if (!stateFile.isFile()) {
+            return states;
+        }
+
+        try {
+            DataInputStream input = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(stateFile)));
+            try {
+                if (input.readInt() != STATE_VERSION) {
+                    return states;
+                }
+
+                int classpathLength = input.readInt();
+                boolean sameSettings = (classpathLength == classpath.length);
+                for (int i = 0; i < classpathLength; i++) {
+                    String url = input.readUTF();
+                    sameSettings = sameSettings
+                            && url.equals(classpath[i].toString());
+                }
+                sameSettings = sameSettings
+                        && input.readUTF().equals(getPlatformIdentity());
+                sameSettings = sameSettings
+                        && (input.readBoolean() == preverificationPolicy
+                                .isFloatingPointAllowed())
+                        && (input.readBoolean() == preverificationPolicy
+                                .areNativeMethodsAllowed())
+                        && (input.readBoolean() == preverificationPolicy
+                                .areFinalizersAllowed());
+
+                long stateTime = input.readLong();
+                if (!sameSettings
+                        || isModifiedAfter(classpath, stateTime,
+                                inputDirectory)) {
+                    return states;
+                }
+
+                int fileCount = input.readInt();
+                for (int i = 0; i < fileCount; i++) {
+                    String path = input.readUTF();
+                    FileState state = new FileState();
+                    state.size = input.readLong();
+                    state.lastModified = input.readLong();
+                    state.hash = input.readUTF();
+                    state.supertypes = new String[input.readInt()];
+                    for (int j = 0; j < state.supertypes.length; j++) {
+                        state.supertypes[j] = input.readUTF();
+                    }
+
+                    states.put(path, state);
+                }
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            // Everything is preverified again
+            states.clear();
+        }
+
+        return states;
+    }
+
+    /**
+     * Write the states of the handled files.
+     *
+     * @param stateFile
+     * @param classpath
+     * @param stateTime the time the files have been scanned at
+     * @param states
+     * @throws IOException
+     */
+    private void writeState(File stateFile, URL[] classpath, long stateTime,
+            Map<String, FileState> states) throws IOException {
+        DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(stateFile)));
+        try {
+            output.writeInt(STATE_VERSION);
+            output.writeInt(classpath.length);
+            for (URL url : classpath) {
+                output.writeUTF(url.toString());
+            }
+            output.writeUTF(getPlatformIdentity());
+            output.writeBoolean(preverificationPolicy.isFloatingPointAllowed());
+            output.writeBoolean(preverificationPolicy.areNativeMethodsAllowed());
+            output.writeBoolean(preverificationPolicy.areFinalizersAllowed());
+            output.writeLong(stateTime);
+
+            output.writeInt(states.size());
+            for (Map.Entry<String, FileState> mapEntry : states.entrySet()) {
+                FileState state = mapEntry.getValue();
+                output.writeUTF(mapEntry.getKey());
+                output.writeLong(state.size);
+                output.writeLong(state.lastModified);
+                output.writeUTF(state.hash);
+                output.writeInt(state.supertypes.length);
+                for (String supertype : state.supertypes) {
+                    output.writeUTF(supertype);
+                }
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Return the name and the content hash of the platform hierarchy recorded
+     * in the state file, empty if there is none. A snapshot regenerated under
+     * the same name is thus told apart.
+     *
+     * @return
+     */
+    private String getPlatformIdentity() {
+        return (platformHierarchy == null) ? "" : platformHierarchy.getName()
+                + " " + platformHierarchy.getContentHash();
+    }
+
+    /**
+     * Return a boolean indicating whether any local file of the classpath
+     * has been modified after the specified time. The other classpath
+     * entries are assumed unchanged. The input directory is left out, as its
+     * files are compared one by one.
+     *
+     * @param classpath
+     * @param time
+     * @param inputDirectory the canonical input directory
+     * @return
+     * @throws IOException
+     */
+    private boolean isModifiedAfter(URL[] classpath, long time,
+            File inputDirectory) throws IOException {
+        for (URL url : classpath) {
+            if ("file".equals(url.getProtocol())) {
+                try {
+                    File file = new File(url.toURI()).getCanonicalFile();
+                    if (isModifiedAfter(file, time, inputDirectory)) {
+                        return true;
+                    }
+                } catch (URISyntaxException e) {
+                    return true;
+                } catch (IllegalArgumentException e) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Return a boolean indicating whether the specified file or any file in
+     * the specified directory has been modified after the specified time,
+     * except for the files of the excluded directory.
+     *
+     * @param file
+     * @param time
+     * @param excludedDirectory
+     * @return
+     */
+    private boolean isModifiedAfter(File file, long time,
+            File excludedDirectory) {
+        if (file.equals(excludedDirectory)) {
+            return false;
+        } else if (file.lastModified() > time) {
+            return true;
+        }
+
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                if (isModifiedAfter(child, time, excludedDirectory)) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,42 @@
+/**
+ * Copyright (c) 2010 Vít Šesták
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package v6.java.preverifier;
+
+import org.objectweb.asm.ClassWriter;
+
+/**
+ * A ClassWriter finding the common superclasses needed for computing the
+ * stack map frames in a {@link CommonSuperclassTable} instead of loading the
+ * classes, so the classes of the classpath and of the platform hierarchy
+ * are never loaded by the virtual machine.
+ */
+class HierarchyClassWriter extends ClassWriter {
+
+    private CommonSuperclassTable commonSuperclasses;
+
+    /**
+     * Construct a new writer with the specified flags.
+     *
+     * @param flags
+     * @param commonSuperclasses
+     */
+    HierarchyClassWriter(int flags, CommonSuperclassTable commonSuperclasses) {
+        super(flags);
+        this.commonSuperclasses = commonSuperclasses;
+    }
+
+    /* (non-Javadoc)
+     * @see org.objectweb.asm.ClassWriter#getCommonSuperClass(java.lang.String, java.lang.String)
+     */
+    @Override
+    protected String getCommonSuperClass(String type1, String type2) {
+        // The writer merges the element classes of arrays, never the arrays
+        return commonSuperclasses.getCommonSuperclass(type1, type2);
+    }
+}
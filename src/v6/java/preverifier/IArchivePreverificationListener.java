@@ -23,6 +23,17 @@ import v6.java.preverifier.results.PreverificationResults;
 /**
  * An interface that clients may provide when pre-verifying archive files to
  * receive callbacks concerning preverification processing.
+ * <p>
+ * When the archive is read from a stream rather than from a file, the archive
+ * passed to the callbacks is <code>null</code>. The same holds for the classes
+ * of a directory, which are passed as entries named by their relative paths.
+ * </p>
+ * <p>
+ * When an archive is preverified incrementally, the classes copied from the
+ * previous output archive are passed to the callbacks as well, with results
+ * holding the copied class, so the listener sees all the classes of the
+ * archive.
+ * </p>
  * 
  * @author Craig Setera
  */
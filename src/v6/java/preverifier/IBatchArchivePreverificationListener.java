@@ -0,0 +1,54 @@
+/**
+ * Copyright (c) 2010 Vít Šesták
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package v6.java.preverifier;
+
+import java.util.List;
+
+/**
+ * An interface that clients may provide to receive the callbacks concerning
+ * the preverification of archive files in batches. It is called by an
+ * {@link AsynchronousArchivePreverificationListener} on its own thread, so
+ * slow listeners do not hold up the preverification.
+ * <p>
+ * The callbacks are delivered in the order they have been made by the
+ * preverifier. The beginnings of the classes are not delivered, as the
+ * preverifier cannot wait for them. The archives are passed by their names,
+ * as an archive may already be closed by the time its callbacks are
+ * delivered.
+ * </p>
+ */
+public interface IBatchArchivePreverificationListener {
+
+    /**
+     * Preverification has begun on the specified archive file.
+     *
+     * @param archiveName the path of the archive or <code>null</code> if
+     *            it has been read from a stream
+     */
+    void fileBegin(String archiveName);
+
+    /**
+     * Preverification has ended on the specified classes. The listener must
+     * return a boolean indicating whether to continue with the
+     * preverification processing. As the preverifier runs ahead of the
+     * listener, the classes already queued are still delivered.
+     *
+     * @param events
+     * @return
+     */
+    boolean classesEnd(List<ClassPreverificationEvent> events);
+
+    /**
+     * Preverification has ended on the specified archive file.
+     *
+     * @param archiveName the path of the archive or <code>null</code> if
+     *            it has been read from a stream
+     */
+    void fileEnd(String archiveName);
+}
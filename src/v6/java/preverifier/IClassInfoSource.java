@@ -0,0 +1,24 @@
+/**
+ * Copyright (c) 2010 Vít Šesták
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package v6.java.preverifier;
+
+/**
+ * A source of the information about classes, e.g. a classpath.
+ */
+interface IClassInfoSource {
+
+    /**
+     * Return the information about the class with the specified internal name
+     * or <code>null</code> if the class cannot be found or read.
+     *
+     * @param internalName
+     * @return
+     */
+    ClassInfo getClassInfo(String internalName);
+}
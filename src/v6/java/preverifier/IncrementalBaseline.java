@@ -0,0 +1,414 @@
+/**
+ * Copyright (c) 2010 Vít Šesták
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package v6.java.preverifier;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipException;
+
+import org.objectweb.asm.ClassReader;
+
+/**
+ * The result of a previous preverification of an archive, used for
+ * preverifying a new version of the archive incrementally. A class of the new
+ * archive is reusable if its contents are the same as in the previous input
+ * archive, its preverified version is present in the previous output archive
+ * and none of its supertypes has changed since then. A supertype has changed
+ * if it is a class of the archive that has been added, removed or modified,
+ * or if it is a classpath class modified after the previous output archive
+ * was written. The classpath classes with an unknown modification time and
+ * the classes of the platform hierarchy are considered unchanged.
+ * <p>
+ * The baseline does not know the policy the previous output was preverified
+ * with, so it must only be used with the same policy, platform hierarchy and
+ * classpath.
+ * </p>
+ */
+class IncrementalBaseline {
+
+    private static final String CLASS_SUFFIX = ".class";
+
+    private ZipArchiveReader previousArchiveReader;
+    private ZipArchiveReader previousOutputReader;
+    private long previousOutputTime;
+    private Map<String, ZipArchiveReader.Entry> reusableEntries;
+
+    /**
+     * Open the previous input and output archives. Return <code>null</code>
+     * if any of them does not exist or cannot be read, so everything must be
+     * preverified again.
+     *
+     * @param previousArchive
+     * @param previousOutputFile
+     * @return
+     * @throws IOException
+     */
+    static IncrementalBaseline open(File previousArchive,
+            File previousOutputFile) throws IOException {
+        if ((previousArchive == null) || !previousArchive.isFile()
+                || (previousOutputFile == null)
+                || !previousOutputFile.isFile()) {
+            return null;
+        }
+
+        IncrementalBaseline baseline = new IncrementalBaseline();
+        baseline.previousOutputTime = previousOutputFile.lastModified();
+        try {
+            baseline.previousArchiveReader = new ZipArchiveReader(
+                    previousArchive);
+            baseline.previousOutputReader = new ZipArchiveReader(
+                    previousOutputFile);
+        } catch (ZipException e) {
+            baseline.close();
+            return null;
+        }
+
+        return baseline;
+    }
+
+    /**
+     * Construct a new baseline.
+     */
+    private IncrementalBaseline() {
+        super();
+        reusableEntries = new HashMap<String, ZipArchiveReader.Entry>();
+    }
+
+    /**
+     * Compare the classes of the new archive with the previous one and find
+     * the classes that need not be preverified again.
+     *
+     * @param archiveReader the reader of the new archive
+     * @param classLoader the class loader of the classpath
+     * @param platformHierarchy the platform or <code>null</code>
+     * @throws IOException
+     */
+    void compare(ZipArchiveReader archiveReader, ClassLoader classLoader,
+            PlatformHierarchy platformHierarchy) throws IOException {
+        Map<String, ZipArchiveReader.Entry> previousClasses = getClassEntries(previousArchiveReader);
+        Map<String, ZipArchiveReader.Entry> previousOutputClasses = getClassEntries(previousOutputReader);
+        Map<String, ZipArchiveReader.Entry> classes = getClassEntries(archiveReader);
+
+        // The types that have been added, removed or modified
+        Set<String> changedTypes = new HashSet<String>();
+        Map<String, ZipArchiveReader.Entry> candidates = new HashMap<String, ZipArchiveReader.Entry>();
+
+        for (Map.Entry<String, ZipArchiveReader.Entry> mapEntry : classes
+                .entrySet()) {
+            String typeName = mapEntry.getKey();
+            ZipArchiveReader.Entry entry = mapEntry.getValue();
+            ZipArchiveReader.Entry previousEntry = previousClasses
+                    .get(typeName);
+
+            if ((previousEntry == null)
+                    || !archiveReader.hasSameContents(entry,
+                            previousArchiveReader, previousEntry)) {
+                changedTypes.add(typeName);
+            } else {
+                ZipArchiveReader.Entry outputEntry = previousOutputClasses
+                        .get(typeName);
+                if ((outputEntry != null)
+                        && previousOutputReader.isReadable(outputEntry)) {
+                    candidates.put(typeName, outputEntry);
+                }
+            }
+        }
+
+        for (String typeName : previousClasses.keySet()) {
+            if (!classes.containsKey(typeName)) {
+                changedTypes.add(typeName);
+            }
+        }
+
+        SupertypeChecker checker = new SupertypeChecker(archiveReader,
+                classes, changedTypes, classLoader, platformHierarchy);
+        for (Map.Entry<String, ZipArchiveReader.Entry> candidate : candidates
+                .entrySet()) {
+            String typeName = candidate.getKey();
+            if (!checker.hasChangedSupertype(typeName)) {
+                reusableEntries.put(typeName + CLASS_SUFFIX, candidate
+                        .getValue());
+            }
+        }
+    }
+
+    /**
+     * Return the reader of the previous output archive.
+     *
+     * @return
+     */
+    ZipArchiveReader getOutputReader() {
+        return previousOutputReader;
+    }
+
+    /**
+     * Return the entry of the previous output archive that can be copied
+     * instead of preverifying the specified entry again or <code>null</code>
+     * if the entry must be preverified.
+     *
+     * @param entryName
+     * @return
+     */
+    ZipArchiveReader.Entry getReusableEntry(String entryName) {
+        return reusableEntries.get(entryName);
+    }
+
+    /**
+     * Close the previous archives.
+     *
+     * @throws IOException
+     */
+    void close() throws IOException {
+        try {
+            if (previousArchiveReader != null)
+                previousArchiveReader.close();
+        } finally {
+            if (previousOutputReader != null)
+                previousOutputReader.close();
+        }
+    }
+
+    /**
+     * Return the class entries of the archive keyed by the internal names of
+     * the classes.
+     *
+     * @param reader
+     * @return
+     */
+    private Map<String, ZipArchiveReader.Entry> getClassEntries(
+            ZipArchiveReader reader) {
+        Map<String, ZipArchiveReader.Entry> classEntries = new HashMap<String, ZipArchiveReader.Entry>();
+
+        for (ZipArchiveReader.Entry entry : reader.getEntries()) {
+            if (entry.name.endsWith(CLASS_SUFFIX)) {
+                String typeName = entry.name.substring(0, entry.name.length()
+                        - CLASS_SUFFIX.length());
+                classEntries.put(typeName, entry);
+            }
+        }
+
+        return classEntries;
+    }
+
+    /**
+     * Checker of the supertypes of the classes, remembering the result for
+     * every type it has seen.
+     */
+    private class SupertypeChecker {
+        private ZipArchiveReader archiveReader;
+        private Map<String, ZipArchiveReader.Entry> classes;
+        private Set<String> changedTypes;
+        private ClassLoader classLoader;
+        private PlatformHierarchy platformHierarchy;
+        private Map<String, Boolean> results;
+        private Map<String, Long> modificationTimes;
+
+        /**
+         * Construct a new checker.
+         *
+         * @param archiveReader
+         * @param classes
+         * @param changedTypes
+         * @param classLoader
+         * @param platformHierarchy
+         */
+        SupertypeChecker(ZipArchiveReader archiveReader,
+                Map<String, ZipArchiveReader.Entry> classes,
+                Set<String> changedTypes, ClassLoader classLoader,
+                PlatformHierarchy platformHierarchy) {
+            this.archiveReader = archiveReader;
+            this.classes = classes;
+            this.changedTypes = changedTypes;
+            this.classLoader = classLoader;
+            this.platformHierarchy = platformHierarchy;
+            this.results = new HashMap<String, Boolean>();
+            this.modificationTimes = new HashMap<String, Long>();
+        }
+
+        /**
+         * Return a boolean indicating whether any of the direct or indirect
+         * supertypes of the specified type has changed.
+         *
+         * @param typeName
+         * @return
+         * @throws IOException
+         */
+        boolean hasChangedSupertype(String typeName) throws IOException {
+            Boolean result = results.get(typeName);
+            if (result != null) {
+                return result.booleanValue();
+            }
+
+            // Guard against cycles in broken hierarchies
+            results.put(typeName, Boolean.TRUE);
+
+            String[] supertypes = getSupertypes(typeName);
+            boolean changed = (supertypes == null);
+            for (int i = 0; !changed && (i < supertypes.length); i++) {
+                changed = hasChanged(supertypes[i])
+                        || hasChangedSupertype(supertypes[i]);
+            }
+
+            results.put(typeName, Boolean.valueOf(changed));
+            return changed;
+        }
+
+        /**
+         * Return a boolean indicating whether the specified type itself has
+         * changed.
+         *
+         * @param typeName
+         * @return
+         * @throws IOException
+         */
+        private boolean hasChanged(String typeName) throws IOException {
+            if (classes.containsKey(typeName)
+                    || changedTypes.contains(typeName)) {
+                return changedTypes.contains(typeName);
+            } else if (isPlatformType(typeName)) {
+                return false;
+            }
+
+            long lastModified = getLastModified(typeName);
+            return (lastModified < 0) || (lastModified > previousOutputTime);
+        }
+
+        /**
+         * Return the modification time of the specified classpath type, zero
+         * if it is unknown or -1 if the type cannot be found.
+         *
+         * @param typeName
+         * @return
+         * @throws IOException
+         */
+        private long getLastModified(String typeName) throws IOException {
+            Long lastModified = modificationTimes.get(typeName);
+
+            if (lastModified == null) {
+                URL resource = classLoader.getResource(typeName
+                        + CLASS_SUFFIX);
+                if (resource == null) {
+                    lastModified = Long.valueOf(-1);
+                } else {
+                    URLConnection connection = resource.openConnection();
+                    lastModified = Long.valueOf(connection.getLastModified());
+                    closeConnection(connection);
+                }
+
+                modificationTimes.put(typeName, lastModified);
+            }
+
+            return lastModified.longValue();
+        }
+
+        /**
+         * Return the direct supertypes of the specified type read from the
+         * archive or the classpath or <code>null</code> if the type cannot be
+         * read. The modification time of the runtime classes is often
+         * unknown, such classes are considered unchanged together with their
+         * supertypes and they are not read at all.
+         *
+         * @param typeName
+         * @return
+         * @throws IOException
+         */
+        private String[] getSupertypes(String typeName) throws IOException {
+            byte[] classBytes;
+
+            ZipArchiveReader.Entry entry = classes.get(typeName);
+            if (entry != null) {
+                if (!archiveReader.isReadable(entry)) {
+                    return null;
+                }
+                classBytes = archiveReader.readContents(entry);
+            } else if (isPlatformType(typeName)) {
+                // The platform never changes, nor do its supertypes
+                return new String[0];
+            } else {
+                long lastModified = getLastModified(typeName);
+                if (lastModified < 0) {
+                    return null;
+                } else if (lastModified == 0) {
+                    return new String[0];
+                }
+
+                InputStream is = classLoader.getResourceAsStream(typeName
+                        + CLASS_SUFFIX);
+                if (is == null) {
+                    return null;
+                }
+
+                try {
+                    ByteArrayOutputStream contents = new ByteArrayOutputStream();
+                    byte[] buffer = new byte[1024];
+                    int bytesRead;
+                    while ((bytesRead = is.read(buffer)) != -1) {
+                        contents.write(buffer, 0, bytesRead);
+                    }
+                    classBytes = contents.toByteArray();
+                } finally {
+                    is.close();
+                }
+            }
+
+            try {
+                ClassReader header = new ClassReader(classBytes);
+                String superName = header.getSuperName();
+                String[] interfaces = header.getInterfaces();
+
+                String[] supertypes = new String[interfaces.length
+                        + ((superName == null) ? 0 : 1)];
+                System.arraycopy(interfaces, 0, supertypes, 0,
+                        interfaces.length);
+                if (superName != null) {
+                    supertypes[interfaces.length] = superName;
+                }
+
+                return supertypes;
+            } catch (RuntimeException e) {
+                // The class cannot be parsed, so it is left for the preverifier
+                return null;
+            }
+        }
+
+        /**
+         * Return a boolean indicating whether the specified type is a part of
+         * the platform hierarchy.
+         *
+         * @param typeName
+         * @return
+         */
+        private boolean isPlatformType(String typeName) {
+            return (platformHierarchy != null)
+                    && (platformHierarchy.getClassInfo(typeName) != null);
+        }
+
+        /**
+         * Release the resources held by the connection that has been opened
+         * only for reading its header fields.
+         *
+         * @param connection
+         */
+        private void closeConnection(URLConnection connection) {
+            try {
+                connection.getInputStream().close();
+            } catch (IOException e) {
+                // Nothing was read, so there is nothing to report
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright (c) 2010 Vít Šesták
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package v6.java.preverifier;
+
+import java.util.Arrays;
+
+import org.objectweb.asm.Label;
+
+/**
+ * A map from the labels of a method to the indices of their instructions. The
+ * labels are compared by their identity and the entries are kept in two
+ * primitive arrays with open addressing, so adding a label allocates nothing
+ * unless the arrays grow. A map can be cleared and reused for the next method
+ * without allocating it again.
+ */
+class LabelIndexMap {
+
+    /** The index returned for the labels not in the map. */
+    static final int NO_INDEX = -1;
+
+    // A power of two, at most a half of the slots is used
+    private static final int INITIAL_CAPACITY = 64;
+
+    private Label[] labels;
+    private int[] indices;
+    private int size;
+
+    /**
+     * Construct a new empty map.
+     */
+    LabelIndexMap() {
+        labels = new Label[INITIAL_CAPACITY];
+        indices = new int[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Return the index of the instruction of the specified label or
+     * {@link #NO_INDEX} if the label is not in the map.
+     *
+     * @param label
+     * @return
+     */
+    int get(Label label) {
+        int mask = labels.length - 1;
+        for (int slot = hash(label) & mask; labels[slot] != null; slot = (slot + 1)
+                & mask) {
+            if (labels[slot] == label) {
+                return indices[slot];
+            }
+        }
+
+        return NO_INDEX;
+    }
+
+    /**
+     * Set the index of the instruction of the specified label.
+     *
+     * @param label
+     * @param index
+     */
+    void put(Label label, int index) {
+        if ((size + 1) * 2 > labels.length) {
+            grow();
+        }
+
+        int mask = labels.length - 1;
+        int slot = hash(label) & mask;
+        while ((labels[slot] != null) && (labels[slot] != label)) {
+            slot = (slot + 1) & mask;
+        }
+        if (labels[slot] == null) {
+            labels[slot] = label;
+            size++;
+        }
+        indices[slot] = index;
+    }
+
+    /**
+     * Return the number of the labels in the map.
+     *
+     * @return
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Remove all the labels from the map, keeping its capacity.
+     */
+    void clear() {
+        if (size > 0) {
+            Arrays.fill(labels, null);
+            size = 0;
+        }
+    }
+
+    /**
+     * Double the capacity of the map.
+     */
+    private void grow() {
+        Label[] oldLabels = labels;
+        int[] oldIndices = indices;
+        labels = new Label[oldLabels.length * 2];
+        indices = new int[oldLabels.length * 2];
+
+        int mask = labels.length - 1;
+        for (int i = 0; i < oldLabels.length; i++) {
+            if (oldLabels[i] != null) {
+                int slot = hash(oldLabels[i]) & mask;
+                while (labels[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                labels[slot] = oldLabels[i];
+                indices[slot] = oldIndices[i];
+            }
+        }
+    }
+
+    /**
+     * Return the hash of the identity of the specified label.
+     *
+     * @param label
+     * @return
+     */
+    private static int hash(Label label) {
+        int hash = System.identityHashCode(label);
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright (c) 2010 Vít Šesták
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package v6.java.preverifier;
+
+/**
+ * A budget of bytes that may be held in memory at once. A reservation that
+ * would exceed the budget has to wait until enough bytes are released,
+ * unless nothing is reserved at all, so a single reservation larger than the
+ * whole budget never waits forever. The budget can be shared among threads.
+ */
+class MemoryBudget {
+    private long limit;
+    private long reserved;
+
+    /**
+     * Construct a new budget.
+     *
+     * @param limit the number of bytes
+     */
+    MemoryBudget(long limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Return the number of bytes of the budget.
+     *
+     * @return
+     */
+    long getLimit() {
+        return limit;
+    }
+
+    /**
+     * Reserve the specified number of bytes if they fit into the budget.
+     * Return a boolean indicating whether they have been reserved.
+     *
+     * @param bytes
+     * @return
+     */
+    synchronized boolean tryReserve(long bytes) {
+        if ((reserved > 0) && (reserved + bytes > limit)) {
+            return false;
+        }
+
+        reserved += bytes;
+        return true;
+    }
+
+    /**
+     * Reserve the specified number of bytes, waiting until they fit into the
+     * budget.
+     *
+     * @param bytes
+     * @throws InterruptedException
+     */
+    synchronized void reserve(long bytes) throws InterruptedException {
+        while (!tryReserve(bytes)) {
+            wait();
+        }
+    }
+
+    /**
+     * Reserve the specified number of bytes immediately, even if they exceed
+     * the budget. Used for the memory that has already been allocated.
+     *
+     * @param bytes
+     */
+    synchronized void forceReserve(long bytes) {
+        reserved += bytes;
+    }
+
+    /**
+     * Release the specified number of reserved bytes.
+     *
+     * @param bytes
+     */
+    synchronized void release(long bytes) {
+        reserved -= bytes;
+        notifyAll();
+    }
+}
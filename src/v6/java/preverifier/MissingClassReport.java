@@ -0,0 +1,122 @@
+/**
+ * Copyright (c) 2010 Vít Šesták
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package v6.java.preverifier;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A report of the classes missing from the classpath, collected while
+ * preverifying any number of classes. For each missing class, the report
+ * keeps the classes referring to it, so a misconfigured classpath shows up as
+ * a short list rather than as an error of every class. The report can be
+ * filled by several threads at once.
+ */
+public class MissingClassReport {
+
+    private Map<String, Set<String>> referrers;
+
+    /**
+     * Construct a new empty report.
+     */
+    public MissingClassReport() {
+        super();
+        referrers = new TreeMap<String, Set<String>>();
+    }
+
+    /**
+     * Return a boolean indicating whether no missing class has been reported.
+     *
+     * @return
+     */
+    public synchronized boolean isEmpty() {
+        return referrers.isEmpty();
+    }
+
+    /**
+     * Return the internal names of the missing classes in alphabetical
+     * order.
+     *
+     * @return
+     */
+    public synchronized Set<String> getMissingClasses() {
+        return new TreeSet<String>(referrers.keySet());
+    }
+
+    /**
+     * Return the internal names of the classes referring to the specified
+     * missing class.
+     *
+     * @param missingClass
+     * @return
+     */
+    public synchronized Set<String> getReferrers(String missingClass) {
+        Set<String> classReferrers = referrers.get(missingClass);
+        return (classReferrers == null) ? Collections.<String> emptySet()
+                : new TreeSet<String>(classReferrers);
+    }
+
+    /**
+     * Return the number of the classes referring to the specified missing
+     * class.
+     *
+     * @param missingClass
+     * @return
+     */
+    public synchronized int getReferrerCount(String missingClass) {
+        Set<String> classReferrers = referrers.get(missingClass);
+        return (classReferrers == null) ? 0 : classReferrers.size();
+    }
+
+    /**
+     * Forget all the reported classes.
+     */
+    public synchronized void clear() {
+        referrers.clear();
+    }
+
+    /**
+     * Return the report with one missing class per line, followed by the
+     * number of the classes referring to it.
+     *
+     * @see java.lang.Object#toString()
+     */
+    public synchronized String toString() {
+        StringBuffer report = new StringBuffer();
+
+        for (Map.Entry<String, Set<String>> mapEntry : referrers.entrySet()) {
+            int count = mapEntry.getValue().size();
+            report.append(mapEntry.getKey()).append(" (").append(count)
+                    .append((count == 1) ? " referrer" : " referrers")
+                    .append(")\n");
+        }
+
+        return report.toString();
+    }
+
+    /**
+     * Record that the specified class refers to the specified missing class.
+     *
+     * @param missingClass
+     * @param referrer
+     */
+    synchronized void addReference(String missingClass, String referrer) {
+        Set<String> classReferrers = referrers.get(missingClass);
+        if (classReferrers == null) {
+            classReferrers = new HashSet<String>();
+            referrers.put(missingClass, classReferrers);
+        }
+
+        classReferrers.add(referrer);
+    }
+}
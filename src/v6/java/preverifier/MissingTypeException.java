@@ -0,0 +1,41 @@
+/**
+ * Copyright (c) 2010 Vít Šesták
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package v6.java.preverifier;
+
+/**
+ * Signals that a type needed for verifying a method cannot be found on the
+ * verification classpath. It is reported as a
+ * {@link v6.java.preverifier.results.PreverificationErrorType#MISSING_TYPE}
+ * error of the method.
+ */
+@SuppressWarnings("serial")
+class MissingTypeException extends RuntimeException {
+
+    private final String typeName;
+
+    /**
+     * Construct a new exception for the type with the specified internal
+     * name.
+     *
+     * @param typeName
+     */
+    MissingTypeException(String typeName) {
+        super("Missing type " + typeName);
+        this.typeName = typeName;
+    }
+
+    /**
+     * Return the internal name of the missing type.
+     *
+     * @return
+     */
+    String getTypeName() {
+        return typeName;
+    }
+}
@@ -0,0 +1,43 @@
+/**
+ * Copyright (c) 2010 Vít Šesták
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package v6.java.preverifier;
+
+/**
+ * A source of the class information looking up the classes in a platform
+ * hierarchy first and in the classpath then, just like the platform classes
+ * would be found first on the device.
+ */
+class PlatformClassInfoSource implements IClassInfoSource {
+    private PlatformHierarchy platformHierarchy;
+    private IClassInfoSource classpathSource;
+
+    /**
+     * Construct a new source.
+     *
+     * @param platformHierarchy
+     * @param classpathSource
+     */
+    PlatformClassInfoSource(PlatformHierarchy platformHierarchy,
+            IClassInfoSource classpathSource) {
+        this.platformHierarchy = platformHierarchy;
+        this.classpathSource = classpathSource;
+    }
+
+    /**
+     * @see v6.java.preverifier.IClassInfoSource#getClassInfo(java.lang.String)
+     */
+    public ClassInfo getClassInfo(String internalName) {
+        ClassInfo classInfo = platformHierarchy.getClassInfo(internalName);
+        if (classInfo == null) {
+            classInfo = classpathSource.getClassInfo(internalName);
+        }
+
+        return classInfo;
+    }
+}
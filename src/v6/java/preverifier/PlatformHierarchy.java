@@ -0,0 +1,439 @@
+/**
+ * Copyright (c) 2010 Vít Šesták
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package v6.java.preverifier;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * A snapshot of the class hierarchy of a platform API, such as CLDC or MIDP.
+ * It can be used for resolving the platform types instead of putting the API
+ * archives on the classpath. The snapshot keeps just the names, supertypes
+ * and access flags of the classes in a compact binary form, so it is read
+ * in milliseconds.
+ * <p>
+ * A snapshot file is generated from the API archives by the
+ * {@link PlatformHierarchyGenerator} tool. The snapshots of the standard
+ * platforms are bundled as resources of this class in the
+ * <code>platform</code> subdirectory, named after the platform with the
+ * <code>.hierarchy</code> suffix. They are returned by
+ * {@link #getStandard(String)} or selected by
+ * {@link AbstractPreverificationPolicy#getPlatformHierarchy(String)}.
+ * </p>
+ * <p>
+ * Two snapshots are equal if they have the same name and the same classes,
+ * so a snapshot can be a part of a cache key.
+ * </p>
+ */
+public class PlatformHierarchy {
+
+    /** The name of the CLDC 1.0 platform snapshot. */
+    public static final String CLDC_1_0 = "cldc-1.0";
+
+    /** The name of the CLDC 1.1 platform snapshot. */
+    public static final String CLDC_1_1 = "cldc-1.1";
+
+    /** The name of the MIDP 1.0 platform snapshot. */
+    public static final String MIDP_1_0 = "midp-1.0";
+
+    /** The name of the MIDP 2.0 platform snapshot. */
+    public static final String MIDP_2_0 = "midp-2.0";
+
+    private static final int MAGIC = 0x50564853;
+    private static final int VERSION = 1;
+    private static final String RESOURCE_PREFIX = "platform/";
+    private static final String RESOURCE_SUFFIX = ".hierarchy";
+    private static final String CLASS_SUFFIX = ".class";
+
+    private static final Map<String, PlatformHierarchy> standardHierarchies = new HashMap<String, PlatformHierarchy>();
+
+    /**
+     * Return the bundled snapshot of the specified standard platform. Each
+     * snapshot is read only once.
+     *
+     * @param name
+     * @return
+     * @throws FileNotFoundException if no such snapshot is bundled
+     * @throws IOException if the snapshot cannot be read
+     */
+    public static PlatformHierarchy getStandard(String name)
+            throws IOException {
+        synchronized (standardHierarchies) {
+            PlatformHierarchy hierarchy = standardHierarchies.get(name);
+
+            if (hierarchy == null) {
+                InputStream is = PlatformHierarchy.class
+                        .getResourceAsStream(RESOURCE_PREFIX + name
+                                + RESOURCE_SUFFIX);
+                if (is == null) {
+                    throw new FileNotFoundException(
+                            "No platform hierarchy named " + name);
+                }
+
+                try {
+                    hierarchy = read(is);
+                } finally {
+                    is.close();
+                }
+                standardHierarchies.put(name, hierarchy);
+            }
+
+            return hierarchy;
+        }
+    }
+
+    /**
+     * Return the bundled snapshot of the specified standard configuration
+     * combined with the specified standard profile, e.g. {@link #CLDC_1_1}
+     * and {@link #MIDP_2_0}.
+     *
+     * @param configurationName
+     * @param profileName the profile or <code>null</code> for the
+     *            configuration alone
+     * @return
+     * @throws FileNotFoundException if no such snapshot is bundled
+     * @throws IOException if a snapshot cannot be read
+     */
+    public static PlatformHierarchy getStandard(String configurationName,
+            String profileName) throws IOException {
+        PlatformHierarchy configuration = getStandard(configurationName);
+
+        return (profileName == null) ? configuration : combine(configuration,
+                getStandard(profileName));
+    }
+
+    /**
+     * Read the snapshot from the specified file.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static PlatformHierarchy read(File file) throws IOException {
+        InputStream is = new FileInputStream(file);
+        try {
+            return read(is);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Create the snapshot of the classes of the specified API archives. If
+     * several archives contain the same class, the first one wins.
+     *
+     * @param name
+     * @param apiArchives
+     * @return
+     * @throws IOException
+     */
+    public static PlatformHierarchy create(String name, File[] apiArchives)
+            throws IOException {
+        Map<String, ClassInfo> classes = new TreeMap<String, ClassInfo>();
+
+        for (File apiArchive : apiArchives) {
+            ZipFile zipFile = new ZipFile(apiArchive);
+            try {
+                Enumeration<? extends ZipEntry> entries = zipFile.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    if (entry.isDirectory()
+                            || !entry.getName().endsWith(CLASS_SUFFIX)) {
+                        continue;
+                    }
+
+                    InputStream is = zipFile.getInputStream(entry);
+                    try {
+                        ClassInfo classInfo = ClassInfo.read(is);
+                        if (!classes.containsKey(classInfo.getName())) {
+                            classes.put(classInfo.getName(), classInfo);
+                        }
+                    } finally {
+                        is.close();
+                    }
+                }
+            } finally {
+                zipFile.close();
+            }
+        }
+
+        return new PlatformHierarchy(name, classes);
+    }
+
+    /**
+     * Combine the specified snapshots into one, e.g. a configuration and a
+     * profile. If both of them contain the same class, the first one wins.
+     *
+     * @param first
+     * @param second
+     * @return
+     */
+    public static PlatformHierarchy combine(PlatformHierarchy first,
+            PlatformHierarchy second) {
+        Map<String, ClassInfo> classes = new HashMap<String, ClassInfo>(
+                second.classes);
+        classes.putAll(first.classes);
+
+        return new PlatformHierarchy(first.name + "+" + second.name, classes);
+    }
+
+    /**
+     * Read the snapshot from the specified stream. The stream is not closed.
+     *
+     * @param is
+     * @return
+     * @throws IOException if the stream does not contain a valid snapshot
+     */
+    private static PlatformHierarchy read(InputStream is) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(
+                is));
+        if (input.readInt() != MAGIC) {
+            throw new IOException("Not a platform hierarchy");
+        }
+        int version = input.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported platform hierarchy version "
+                    + version);
+        }
+
+        String name = input.readUTF();
+
+        String[] names = new String[input.readInt()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = input.readUTF();
+        }
+
+        try {
+            int classCount = input.readInt();
+            Map<String, ClassInfo> classes = new HashMap<String, ClassInfo>(
+                    classCount * 4 / 3 + 1);
+            for (int i = 0; i < classCount; i++) {
+                String className = names[input.readInt()];
+                int superIndex = input.readInt();
+                String superName = (superIndex < 0) ? null : names[superIndex];
+                String[] interfaces = new String[input.readUnsignedShort()];
+                for (int j = 0; j < interfaces.length; j++) {
+                    interfaces[j] = names[input.readInt()];
+                }
+                int access = input.readUnsignedShort();
+
+                classes.put(className, new ClassInfo(className, superName,
+                        interfaces, access));
+            }
+
+            return new PlatformHierarchy(name, classes);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Invalid name index");
+        }
+    }
+
+    private String name;
+    private Map<String, ClassInfo> classes;
+    private String contentHash;
+
+    /**
+     * Construct a new snapshot.
+     *
+     * @param name
+     * @param classes the classes keyed by their internal names
+     */
+    private PlatformHierarchy(String name, Map<String, ClassInfo> classes) {
+        this.name = name;
+        this.classes = classes;
+        this.contentHash = computeContentHash();
+    }
+
+    /**
+     * Return the name of the platform.
+     *
+     * @return
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Return the hexadecimal SHA-1 hash of the snapshot as it is written into
+     * a file, so it covers the name and all the classes.
+     *
+     * @return
+     */
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    /**
+     * Return the number of the classes of the platform.
+     *
+     * @return
+     */
+    public int getClassCount() {
+        return classes.size();
+    }
+
+    /**
+     * @see java.lang.Object#equals(java.lang.Object)
+     */
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
+        if (!(obj instanceof PlatformHierarchy)) {
+            return false;
+        }
+
+        PlatformHierarchy other = (PlatformHierarchy) obj;
+        return name.equals(other.name)
+                && contentHash.equals(other.contentHash);
+    }
+
+    /**
+     * @see java.lang.Object#hashCode()
+     */
+    public int hashCode() {
+        return contentHash.hashCode();
+    }
+
+    /**
+     * Write the snapshot into the specified file. The classes are written in
+     * the order of their names, so the same API always gives the same file.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void write(File file) throws IOException {
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            write(os);
+        } finally {
+            os.close();
+        }
+    }
+
+    /**
+     * Return the information about the class with the specified internal name
+     * or <code>null</code> if the class is not a part of the platform.
+     *
+     * @param internalName
+     * @return
+     */
+    ClassInfo getClassInfo(String internalName) {
+        return classes.get(internalName);
+    }
+
+    /**
+     * Write the snapshot into the specified stream. The stream is flushed,
+     * but not closed.
+     *
+     * @param os
+     * @throws IOException
+     */
+    private void write(OutputStream os) throws IOException {
+        Map<String, ClassInfo> sortedClasses = new TreeMap<String, ClassInfo>(
+                classes);
+
+        // All the names are written once and referenced by their indices
+        Map<String, Integer> nameIndices = new LinkedHashMap<String, Integer>();
+        for (ClassInfo classInfo : sortedClasses.values()) {
+            addName(nameIndices, classInfo.getName());
+            if (classInfo.getSuperName() != null) {
+                addName(nameIndices, classInfo.getSuperName());
+            }
+            for (String interfaceName : classInfo.getInterfaces()) {
+                addName(nameIndices, interfaceName);
+            }
+        }
+
+        DataOutputStream output = new DataOutputStream(os);
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        output.writeUTF(name);
+
+        output.writeInt(nameIndices.size());
+        for (String className : nameIndices.keySet()) {
+            output.writeUTF(className);
+        }
+
+        output.writeInt(sortedClasses.size());
+        for (ClassInfo classInfo : sortedClasses.values()) {
+            output.writeInt(nameIndices.get(classInfo.getName()).intValue());
+            output.writeInt((classInfo.getSuperName() == null) ? -1
+                    : nameIndices.get(classInfo.getSuperName()).intValue());
+            output.writeShort(classInfo.getInterfaces().length);
+            for (String interfaceName : classInfo.getInterfaces()) {
+                output.writeInt(nameIndices.get(interfaceName).intValue());
+            }
+            output.writeShort(classInfo.getAccess());
+        }
+        output.flush();
+    }
+
+    /**
+     * Compute the hexadecimal SHA-1 hash of the snapshot as it is written
+     * into a file.
+     *
+     * @return
+     */
+    private String computeContentHash() {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available");
+        }
+
+        ByteArrayOutputStream contents = new ByteArrayOutputStream();
+        try {
+            write(contents);
+        } catch (IOException e) {
+            // Not thrown by a stream writing into memory
+            throw new IllegalStateException(e.getMessage());
+        }
+
+        byte[] hash = digest.digest(contents.toByteArray());
+        StringBuffer hexHash = new StringBuffer(hash.length * 2);
+        for (byte b : hash) {
+            hexHash.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hexHash.append(Character.forDigit(b & 0xF, 16));
+        }
+
+        return hexHash.toString();
+    }
+
+    /**
+     * Assign the next index to the specified name unless it has one already.
+     *
+     * @param nameIndices
+     * @param className
+     */
+    private void addName(Map<String, Integer> nameIndices, String className) {
+        if (!nameIndices.containsKey(className)) {
+            nameIndices.put(className, Integer.valueOf(nameIndices.size()));
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright (c) 2010 Vít Šesták
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package v6.java.preverifier;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A command line tool generating a {@link PlatformHierarchy} snapshot file
+ * from the API archives of a platform. The arguments are the name of the
+ * platform, the snapshot file and the API archives, e.g.
+ * <code>cldc-1.1 cldc-1.1.hierarchy cldcapi11.jar</code>.
+ */
+public class PlatformHierarchyGenerator {
+
+    /**
+     * Generate a snapshot file from the API archives.
+     *
+     * @param args
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: PlatformHierarchyGenerator <name> "
+                    + "<snapshot file> <API archive>...");
+            System.exit(1);
+        }
+
+        File[] apiArchives = new File[args.length - 2];
+        for (int i = 0; i < apiArchives.length; i++) {
+            apiArchives[i] = new File(args[i + 2]);
+        }
+
+        PlatformHierarchy hierarchy = PlatformHierarchy.create(args[0],
+                apiArchives);
+        hierarchy.write(new File(args[1]));
+        System.out.println(hierarchy.getClassCount() + " classes written to "
+                + args[1]);
+    }
+
+    /**
+     * The tool is not meant to be instantiated.
+     */
+    private PlatformHierarchyGenerator() {
+        super();
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright (c) 2010 Vít Šesták
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package v6.java.preverifier;
+
+import java.util.BitSet;
+
+import org.objectweb.asm.ClassAdapter;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * A class visitor looking for the preverification errors of a class while
+ * passing it on to the writer, so no tree of the class is built. The checks
+ * and the errors are kept by a {@link PreverificationClassNode}, which only
+ * records the header of the class.
+ * <p>
+ * The subroutines of a method can only be inlined in its tree, which is
+ * known to be needed no sooner than the first JSR instruction of the method
+ * is visited. The methods containing a JSR instruction are therefore only
+ * recorded by the first visit of the class and the class must be visited
+ * again with them, building the trees of those methods only.
+ * </p>
+ */
+class PreverificationClassAdapter extends ClassAdapter {
+
+    /** A method adapter recording the JSR instructions it visits. */
+    private class StreamingMethodAdapter extends PreverificationMethodAdapter {
+        private int methodIndex;
+
+        /**
+         * Construct a new adapter of the method with the specified index.
+         *
+         * @param mv
+         * @param methodIndex
+         * @param access
+         * @param name
+         * @param desc
+         * @param signature
+         * @param exceptions
+         */
+        StreamingMethodAdapter(MethodVisitor mv, int methodIndex, int access,
+                String name, String desc, String signature,
+                String[] exceptions) {
+            super(classNode, mv, access, name, desc, signature, exceptions);
+            this.methodIndex = methodIndex;
+        }
+
+        /* (non-Javadoc)
+         * @see v6.java.preverifier.PreverificationMethodAdapter#visitJumpInsn(int, org.objectweb.asm.Label)
+         */
+        @Override
+        public void visitJumpInsn(int opcode, Label label) {
+            if ((opcode == Opcodes.JSR) && !jsrMethods.get(methodIndex)) {
+                // The writer cannot compute the frames of a subroutine, so
+                // the rest of the method is only checked
+                jsrMethods.set(methodIndex);
+                mv = getMethodNode();
+            }
+
+            super.visitJumpInsn(opcode, label);
+        }
+    }
+
+    private PreverificationClassNode classNode;
+    private BitSet inlinedMethods;
+    private BitSet jsrMethods;
+    private int methodCount;
+    private PreverificationMethodAdapter methodAdapter;
+
+    /**
+     * Construct a new adapter passing the class on to the specified visitor.
+     * The methods with the specified indices are built as trees, so their
+     * subroutines can be inlined.
+     *
+     * @param classNode the node keeping the header and the errors
+     * @param cv
+     * @param inlinedMethods the indices of the methods in the order of their
+     *            visits or <code>null</code> if not known yet
+     */
+    PreverificationClassAdapter(PreverificationClassNode classNode,
+            ClassVisitor cv, BitSet inlinedMethods) {
+        super(cv);
+        this.classNode = classNode;
+        this.inlinedMethods = inlinedMethods;
+        this.jsrMethods = new BitSet();
+    }
+
+    /**
+     * Return the indices of the methods containing a JSR instruction that
+     * have been passed on without inlining their subroutines. If there are
+     * any, the written class is not valid and the class must be visited
+     * again with these methods inlined.
+     *
+     * @return
+     */
+    BitSet getJsrMethods() {
+        return jsrMethods;
+    }
+
+    /**
+     * Return the method visited last, i.e. the method being written when the
+     * writer fails, or <code>null</code> if no method has been visited.
+     * 
+     * @return
+     */
+    MethodNode getLastMethod() {
+        return (methodAdapter == null) ? null : methodAdapter.getMethodNode();
+    }
+
+    /* (non-Javadoc)
+     * @see org.objectweb.asm.ClassAdapter#visit(int, int, java.lang.String, java.lang.String, java.lang.String, java.lang.String[])
+     */
+    @Override
+    public void visit(int version, int access, String name, String signature,
+            String superName, String[] interfaces) {
+        classNode.visit(version, access, name, signature, superName,
+                interfaces);
+        super.visit(version, access, name, signature, superName, interfaces);
+    }
+
+    /* (non-Javadoc)
+     * @see org.objectweb.asm.ClassAdapter#visitSource(java.lang.String, java.lang.String)
+     */
+    @Override
+    public void visitSource(String source, String debug) {
+        classNode.visitSource(source, debug);
+        super.visitSource(source, debug);
+    }
+
+    /* (non-Javadoc)
+     * @see org.objectweb.asm.ClassAdapter#visitField(int, java.lang.String, java.lang.String, java.lang.String, java.lang.Object)
+     */
+    @Override
+    public FieldVisitor visitField(int access, String name, String desc,
+            String signature, Object value) {
+        FieldVisitor fieldVisitor = null;
+
+        if (classNode.validateField(name, desc)) {
+            fieldVisitor = super.visitField(access, name, desc, signature,
+                    PreverificationClassNode.getConstantValue(access, value));
+        }
+
+        return fieldVisitor;
+    }
+
+    /* (non-Javadoc)
+     * @see org.objectweb.asm.ClassAdapter#visitMethod(int, java.lang.String, java.lang.String, java.lang.String, java.lang.String[])
+     */
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String desc,
+            String signature, String[] exceptions) {
+        int methodIndex = methodCount++;
+        MethodVisitor mv = super.visitMethod(access, name, desc, signature,
+                exceptions);
+
+        PreverificationMethodAdapter methodAdapter;
+        if ((inlinedMethods != null) && inlinedMethods.get(methodIndex)) {
+            methodAdapter = new PreverificationMethodAdapter(classNode,
+                    new PreverifierMethodNode(classNode, access, name, desc,
+                            signature, exceptions, mv));
+        } else {
+            methodAdapter = new StreamingMethodAdapter(mv, methodIndex,
+                    access, name, desc, signature, exceptions);
+        }
+        classNode.validateMethod(access, name, desc, methodAdapter);
+        this.methodAdapter = methodAdapter;
+
+        return methodAdapter;
+    }
+}
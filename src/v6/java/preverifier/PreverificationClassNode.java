@@ -16,9 +16,7 @@
 package v6.java.preverifier;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import org.objectweb.asm.FieldVisitor;
 import org.objectweb.asm.MethodVisitor;
@@ -38,35 +36,25 @@ import v6.java.preverifier.results.PreverificationErrorType;
 /**
  * A class visitor that provides necessary functionality for traversing and
  * handling the structure changes required by the preverifier to a class.
+ * <p>
+ * When a class is preverified by {@link ClassPreverifier}, the node only
+ * keeps the header of the class and the errors, while the class is passed
+ * on to the writer by a {@link PreverificationClassAdapter} using the checks
+ * of this node.
+ * </p>
  * 
  * @author Craig Setera
  */
 public class PreverificationClassNode extends ClassNode {
 
-    // Type definitions
-    private static final Type BOOLEAN_TYPE = Type
-            .getType("Ljava/lang/Boolean;");
-    private static final Type BYTE_TYPE = Type.getType("Ljava/lang/Byte;");
-    private static final Type CHARACTER_TYPE = Type
-            .getType("Ljava/lang/Character;");
-    private static final Type DOUBLE_TYPE = Type.getType("Ljava/lang/Double;");
-    private static final Type FLOAT_TYPE = Type.getType("Ljava/lang/Float;");
-    private static final Type INTEGER_TYPE = Type
-            .getType("Ljava/lang/Integer;");
-    private static final Type LONG_TYPE = Type.getType("Ljava/lang/Long;");
-    private static final Type SHORT_TYPE = Type.getType("Ljava/lang/Short;");
-    private static final Type VOID_TYPE = Type.getType("Ljava/lang/Void;");
-
     private ClassLoader classLoader;
-    private Class<?> doubleClass;
+    private TypeVerdictCache typeVerdicts;
+    private MissingClassReport missingClassReport;
     private ArrayList<PreverificationError> errorList;
-    private Class<?> floatClass;
+    private LabelIndexMap labelIndexMap;
 
-    // Some class instances in the correct classloader
-    private Class<?> objectClass;
     // Implementation
     private IPreverificationPolicy preverificationPolicy;
-    private Map<Type, PreverificationErrorType> validTypes;
 
     /**
      * Construct a class adapter for preverification.
@@ -77,20 +65,25 @@ public class PreverificationClassNode extends ClassNode {
     public PreverificationClassNode(
             IPreverificationPolicy preverificationPolicy,
             ClassLoader classloader) {
+        this(preverificationPolicy, classloader, TypeVerdictCache
+                .getInstance(classloader));
+    }
+
+    /**
+     * Construct a class adapter for preverification that uses the specified
+     * cache of the class hierarchy and the results of the type validation.
+     * The cache must belong to the classpath of the specified class loader.
+     * 
+     * @param preverificationPolicy
+     * @param classloader
+     * @param typeVerdicts
+     */
+    PreverificationClassNode(IPreverificationPolicy preverificationPolicy,
+            ClassLoader classloader, TypeVerdictCache typeVerdicts) {
         this.preverificationPolicy = preverificationPolicy;
         this.errorList = new ArrayList<PreverificationError>();
         this.classLoader = classloader;
-
-        validTypes = new HashMap<Type, PreverificationErrorType>();
-
-        // Capture some class instances in the specified classloader
-        try {
-            objectClass = Class.forName("java.lang.Object", true, classLoader);
-            floatClass = Class.forName("java.lang.Float", true, classLoader);
-            doubleClass = Class.forName("java.lang.Double", true, classLoader);
-        } catch (ClassNotFoundException e) {
-            // Shouldn't happen
-        }
+        this.typeVerdicts = typeVerdicts;
     }
 
     /**
@@ -120,17 +113,39 @@ public class PreverificationClassNode extends ClassNode {
             final String desc, final String signature, final Object value) {
         FieldVisitor fieldVisitor = null;
 
-        Type type = Type.getType(desc);
-        PreverificationErrorType error = validateType(type);
-
-        if (error == PreverificationErrorType.NO_ERROR) {
-            // To match up with the WTK output, we want to make sure to strip
-            // off potential constant values from non-static fields.
-            Object constantValue = ((access & Opcodes.ACC_STATIC) != 0) ? value
-                    : null;
+        if (validateField(name, desc)) {
             fieldVisitor = super.visitField(access, name, desc, signature,
-                    constantValue);
-        } else {
+                    getConstantValue(access, value));
+        }
+
+        return fieldVisitor;
+    }
+
+    /**
+     * Return the constant value of the field to be written. To match up with
+     * the WTK output, we want to make sure to strip off potential constant
+     * values from non-static fields.
+     * 
+     * @param access
+     * @param value
+     * @return
+     */
+    static Object getConstantValue(int access, Object value) {
+        return ((access & Opcodes.ACC_STATIC) != 0) ? value : null;
+    }
+
+    /**
+     * Check the type of the specified field, adding an error if it is not
+     * valid.
+     * 
+     * @param name
+     * @param desc
+     * @return whether the type is valid
+     */
+    boolean validateField(String name, String desc) {
+        PreverificationErrorType error = validateType(desc);
+
+        if (error != PreverificationErrorType.NO_ERROR) {
             ClassNodeErrorInformation classInfo = new ClassNodeErrorInformation(
                     this);
             FieldErrorInformation fieldInfo = new FieldErrorInformation(name,
@@ -143,7 +158,7 @@ public class PreverificationClassNode extends ClassNode {
             getErrorList().add(fieldError);
         }
 
-        return fieldVisitor;
+        return error == PreverificationErrorType.NO_ERROR;
     }
 
     /* (non-Javadoc)
@@ -152,9 +167,25 @@ public class PreverificationClassNode extends ClassNode {
     @Override
     public MethodVisitor visitMethod(final int access, final String name,
             final String desc, final String signature, final String[] exceptions) {
-        MethodNode mn = new PreverifierMethodNode(this, access, name, desc,
-                signature, exceptions);
+        PreverificationMethodAdapter methodAdapter = new PreverificationMethodAdapter(
+                this, new PreverifierMethodNode(this, access, name, desc,
+                        signature, exceptions));
+        validateMethod(access, name, desc, methodAdapter);
 
+        return methodAdapter;
+    }
+
+    /**
+     * Check the header of the specified method, adding the errors to the
+     * method of the specified adapter.
+     * 
+     * @param access
+     * @param name
+     * @param desc
+     * @param methodAdapter
+     */
+    void validateMethod(int access, String name, String desc,
+            PreverificationMethodAdapter methodAdapter) {
         boolean isNativeError = !preverificationPolicy
                 .areNativeMethodsAllowed()
                 && ((access & Opcodes.ACC_NATIVE) != 0);
@@ -169,7 +200,7 @@ public class PreverificationClassNode extends ClassNode {
             ClassNodeErrorInformation classInfo = new ClassNodeErrorInformation(
                     this);
             MethodNodeErrorInformation methodInfo = new MethodNodeErrorInformation(
-                    classInfo, mn);
+                    classInfo, methodAdapter.getMethodNode());
             PreverificationErrorLocation location = new PreverificationErrorLocation(
                     PreverificationErrorLocationType.METHOD_SIGNATURE,
                     classInfo, methodInfo, null, -1);
@@ -192,8 +223,6 @@ public class PreverificationClassNode extends ClassNode {
                 getErrorList().add(error);
             }
         }
-
-        return mn;
     }
 
     /**
@@ -203,14 +232,14 @@ public class PreverificationClassNode extends ClassNode {
      * @return
      */
     private PreverificationErrorType getMethodSignatureError(String desc) {
-        Type returnType = Type.getReturnType(desc);
-        PreverificationErrorType errorType = validateType(returnType);
+        // The return type comes first, followed by the parameter types
+        int[] typeIds = typeVerdicts.getTypeTable().getMethodTypeIds(desc);
+        PreverificationErrorType errorType = validateType(typeIds[0]);
 
         if (errorType != PreverificationErrorType.NO_ERROR) {
-            Type[] paramTypes = Type.getArgumentTypes(desc);
-            for (int i = 0; (i < paramTypes.length)
+            for (int i = 1; (i < typeIds.length)
                     && (errorType != PreverificationErrorType.NO_ERROR); i++) {
-                errorType = validateType(paramTypes[i]);
+                errorType = validateType(typeIds[i]);
             }
         }
 
@@ -218,158 +247,130 @@ public class PreverificationClassNode extends ClassNode {
     }
 
     /**
-     * Return the root type of the specified type, stripping away the array and
-     * primitive wrappers.
+     * Return the class hierarchy of the verification classpath.
      * 
-     * @param type
      * @return
      */
-    private Type getObjectType(Type type) {
-        Type objectType = type;
-
-        switch (type.getSort()) {
-            // Convert primitive types to object types
-            case Type.BOOLEAN:
-                objectType = BOOLEAN_TYPE;
-                break;
-            case Type.CHAR:
-                objectType = CHARACTER_TYPE;
-                break;
-            case Type.BYTE:
-                objectType = BYTE_TYPE;
-                break;
-            case Type.SHORT:
-                objectType = SHORT_TYPE;
-                break;
-            case Type.INT:
-                objectType = INTEGER_TYPE;
-                break;
-            case Type.FLOAT:
-                objectType = FLOAT_TYPE;
-                break;
-            case Type.LONG:
-                objectType = LONG_TYPE;
-                break;
-            case Type.DOUBLE:
-                objectType = DOUBLE_TYPE;
-                break;
-            case Type.VOID:
-                objectType = VOID_TYPE;
-                break;
-
-            case Type.ARRAY:
-                objectType = getObjectType(type.getElementType());
-                break;
-        }
-
-        return objectType;
+    ClassHierarchy getClassHierarchy() {
+        return typeVerdicts.getClassHierarchy();
     }
 
     /**
-     * Attempt to locate the class that defines the specified type instance.
+     * Return a classloader for the verification classpath.
      * 
-     * @param objectType
      * @return
-     * @throws ClassNotFoundException
      */
-    private Class<?> getTypeClass(Type objectType)
-            throws ClassNotFoundException {
-        String dottedName = objectType.getInternalName().replace('/', '.');
-        return Class.forName(dottedName, true, classLoader);
+    ClassLoader getClassLoader() {
+        return classLoader;
     }
 
     /**
-     * Return a boolean indicating whether or not the specified type is
-     * disallowed.
+     * Return the preverification policy in use.
      * 
-     * @param clazz
      * @return
      */
-    private boolean isDisallowedType(Class<?> clazz) {
-        boolean disallowed = false;
-
-        if (!getPreverificationPolicy().isFloatingPointAllowed()) {
-            disallowed = isFloatingPointType(clazz);
-        }
-
-        return disallowed;
+    IPreverificationPolicy getPreverificationPolicy() {
+        return preverificationPolicy;
     }
 
     /**
-     * Return a boolean indicating whether or not the specified type is a
-     * floating point type.
+     * Return an error code concerning the validity of the type with the
+     * specified descriptor.
      * 
-     * @param clazz
+     * @param descriptor
      * @return
      */
-    private boolean isFloatingPointType(Class<?> clazz) {
-        return (clazz == floatClass) || (clazz == doubleClass);
+    PreverificationErrorType validateType(String descriptor) {
+        return validateType(typeVerdicts.getTypeTable().getId(descriptor));
     }
 
     /**
-     * Validate the hierarchy to see if it is ok.
+     * Return an error code concerning the validity of the type with the
+     * specified ID, recording the class missing from its hierarchy, if any.
      * 
-     * @param clazz
+     * @param typeId
      * @return
      */
-    private PreverificationErrorType validateHierarchy(Class<?> clazz) {
-        PreverificationErrorType error = null;
+    private PreverificationErrorType validateType(int typeId) {
+        PreverificationErrorType errorType = typeVerdicts.getVerdict(typeId,
+                getPreverificationPolicy().isFloatingPointAllowed());
 
-        if ((clazz == null) || (clazz == objectClass)) {
-            error = PreverificationErrorType.NO_ERROR;
-        } else {
-            if (isDisallowedType(clazz)) {
-                // Assumption is that the only disallowed types are floating
-                // point types
-                error = PreverificationErrorType.FLOATING_POINT;
-            } else {
-                error = validateHierarchy(clazz.getSuperclass());
-            }
+        if ((errorType == PreverificationErrorType.MISSING_TYPE)
+                && (missingClassReport != null)) {
+            reportMissingClass(typeVerdicts.getMissingClass(typeId));
         }
 
-        return error;
+        return errorType;
     }
 
     /**
-     * Return a classloader for the verification classpath.
+     * Return the map of the label indices for the method being visited,
+     * cleared of the labels of the previous method. The methods are visited
+     * one by one, so they can all share a single map.
      * 
      * @return
      */
-    ClassLoader getClassLoader() {
-        return classLoader;
+    LabelIndexMap getLabelIndexMap() {
+        if (labelIndexMap == null) {
+            labelIndexMap = new LabelIndexMap();
+        } else {
+            labelIndexMap.clear();
+        }
+
+        return labelIndexMap;
     }
 
     /**
-     * Return the preverification policy in use.
+     * Add an error for the type that is needed for computing the stack map
+     * frames of the specified method but cannot be found, recording it as a
+     * missing class.
      * 
-     * @return
+     * @param e
+     * @param method the method or <code>null</code> if not known
      */
-    IPreverificationPolicy getPreverificationPolicy() {
-        return preverificationPolicy;
+    void addMissingTypeError(MissingTypeException e, MethodNode method) {
+        reportMissingClass(e.getTypeName());
+
+        ClassNodeErrorInformation classInfo = new ClassNodeErrorInformation(
+                this);
+        PreverificationErrorLocation location;
+        if (method != null) {
+            MethodNodeErrorInformation methodInfo = new MethodNodeErrorInformation(
+                    classInfo, method);
+            location = new PreverificationErrorLocation(
+                    PreverificationErrorLocationType.METHOD_INSTRUCTION,
+                    classInfo, methodInfo, null, -1);
+        } else {
+            location = new PreverificationErrorLocation(
+                    PreverificationErrorLocationType.CLASS_DEFINITION,
+                    classInfo, null, null, -1);
+        }
+
+        PreverificationError error = new PreverificationError(
+                PreverificationErrorType.MISSING_TYPE, location, e.getMessage());
+        getErrorList().add(error);
     }
 
     /**
-     * Return an error code concerning the validity of the specified type.
+     * Record that this class refers to the specified missing class if the
+     * missing classes are recorded.
      * 
-     * @param type
-     * @return
+     * @param missingClass the internal name of the class or
+     *            <code>null</code> if not known
      */
-    PreverificationErrorType validateType(Type type) {
-        PreverificationErrorType errorCode = validTypes.get(type);
-
-        if (errorCode == null) {
-            Type objectType = getObjectType(type);
-
-            try {
-                Class<?> clazz = getTypeClass(objectType);
-                errorCode = validateHierarchy(clazz);
-            } catch (ClassNotFoundException e) {
-                errorCode = PreverificationErrorType.MISSING_TYPE;
-            }
-
-            validTypes.put(type, errorCode);
+    void reportMissingClass(String missingClass) {
+        if ((missingClassReport != null) && (missingClass != null)) {
+            missingClassReport.addReference(missingClass, name);
         }
+    }
 
-        return errorCode;
+    /**
+     * Set the report the missing classes are recorded into or
+     * <code>null</code> if they are not recorded.
+     * 
+     * @param missingClassReport
+     */
+    void setMissingClassReport(MissingClassReport missingClassReport) {
+        this.missingClassReport = missingClassReport;
     }
 }
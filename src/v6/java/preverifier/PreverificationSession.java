@@ -0,0 +1,267 @@
+/**
+ * Copyright (c) 2010 Vít Šesták
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package v6.java.preverifier;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.objectweb.asm.ClassReader;
+
+import v6.java.preverifier.results.PreverificationResults;
+
+/**
+ * A session for preverifying any number of classes with the same policy and
+ * classpath. The session owns the class loader of the classpath together
+ * with the class hierarchy and the results of the type validation, so
+ * everything resolved for one class is reused by the following ones. The
+ * classes can be preverified by several threads at once. The types referred
+ * to by each class are prefetched on other threads while the class is being
+ * preverified. By default, all the sessions share a single pool of as many
+ * threads as there are processors, which are stopped when idle.
+ * <p>
+ * The session must be closed once it is no longer needed, which closes the
+ * class loader and releases the classpath archives on Java 7 and later.
+ * </p>
+ */
+public class PreverificationSession implements Closeable {
+
+    private static final long PREFETCH_KEEP_ALIVE_SECONDS = 10;
+
+    private static ExecutorService sharedPrefetchExecutor;
+
+    /**
+     * Return the pool of threads prefetching the types of the classes for
+     * all the sessions, creating it if it does not exist yet.
+     *
+     * @return
+     */
+    private static synchronized Executor getSharedPrefetchExecutor() {
+        if (sharedPrefetchExecutor == null) {
+            int threadCount = Runtime.getRuntime().availableProcessors();
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threadCount,
+                    threadCount, PREFETCH_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable,
+                                    "Preverification type prefetch");
+                            // The pool must not keep the VM running
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            sharedPrefetchExecutor = executor;
+        }
+
+        return sharedPrefetchExecutor;
+    }
+
+    private ClassPreverifier classPreverifier;
+    private URLClassLoader classLoader;
+    private TypeVerdictCache typeVerdicts;
+    private MissingClassReport missingClassReport;
+    private volatile boolean closed;
+
+    /**
+     * Open a new session with the specified policy and classpath.
+     *
+     * @param preverificationPolicy
+     * @param classpath
+     */
+    public PreverificationSession(
+            IPreverificationPolicy preverificationPolicy, URL[] classpath) {
+        this(preverificationPolicy, classpath, null);
+    }
+
+    /**
+     * Open a new session with the specified policy, classpath and platform
+     * hierarchy, prefetching the types on the threads shared by all the
+     * sessions.
+     *
+     * @param preverificationPolicy
+     * @param classpath
+     * @param platformHierarchy the platform or <code>null</code> if the
+     *            platform classes are on the classpath
+     */
+    public PreverificationSession(
+            IPreverificationPolicy preverificationPolicy, URL[] classpath,
+            PlatformHierarchy platformHierarchy) {
+        this(preverificationPolicy, classpath, platformHierarchy,
+                getSharedPrefetchExecutor());
+    }
+
+    /**
+     * Open a new session with the specified policy, classpath and platform
+     * hierarchy, prefetching the types on the specified executor. The
+     * executor is not shut down by the session.
+     *
+     * @param preverificationPolicy
+     * @param classpath
+     * @param platformHierarchy the platform or <code>null</code> if the
+     *            platform classes are on the classpath
+     * @param prefetchExecutor the executor or <code>null</code> if the
+     *            types are resolved only as they are needed
+     * @see ClassPreverifier#setPrefetchExecutor(Executor)
+     */
+    public PreverificationSession(
+            IPreverificationPolicy preverificationPolicy, URL[] classpath,
+            PlatformHierarchy platformHierarchy, Executor prefetchExecutor) {
+        super();
+
+        if (preverificationPolicy == null) {
+            throw new IllegalArgumentException(
+                    "Preverification policy must not be null");
+        }
+        if (classpath == null) {
+            throw new IllegalArgumentException("Classpath must not be null");
+        }
+
+        classPreverifier = new ClassPreverifier(preverificationPolicy);
+        classPreverifier.setPlatformHierarchy(platformHierarchy);
+        missingClassReport = new MissingClassReport();
+        classPreverifier.setMissingClassReport(missingClassReport);
+        classPreverifier.setPrefetchExecutor(prefetchExecutor);
+        classLoader = new URLClassLoader(classpath, Thread.currentThread()
+                .getContextClassLoader());
+        typeVerdicts = new TypeVerdictCache(classLoader, platformHierarchy,
+                null);
+    }
+
+    /**
+     * Return the class loader of the classpath.
+     *
+     * @return
+     */
+    public ClassLoader getClassLoader() {
+        return classLoader;
+    }
+
+    /**
+     * Return the report of the classes missing from the classpath, collected
+     * from all the classes preverified by this session.
+     *
+     * @return
+     */
+    public MissingClassReport getMissingClassReport() {
+        return missingClassReport;
+    }
+
+    /**
+     * Preverify the specified class file. The stream is closed.
+     *
+     * @param classStream
+     * @return
+     * @throws IOException
+     * @throws IllegalStateException if the session has been closed
+     */
+    public PreverificationResults preverify(InputStream classStream)
+            throws IOException {
+        checkOpen();
+        if (classStream == null) {
+            throw new IllegalArgumentException(
+                    "Class byte stream must not be null");
+        }
+
+        ClassReader classReader;
+        try {
+            classReader = new ClassReader(classStream);
+        } finally {
+            classStream.close();
+        }
+
+        return preverify(classReader);
+    }
+
+    /**
+     * Preverify the specified class file contents.
+     *
+     * @param classBytes
+     * @return
+     * @throws IllegalStateException if the session has been closed
+     */
+    public PreverificationResults preverify(byte[] classBytes) {
+        checkOpen();
+        if (classBytes == null) {
+            throw new IllegalArgumentException(
+                    "Class bytes must not be null");
+        }
+
+        return preverify(new ClassReader(classBytes));
+    }
+
+    /**
+     * Preverify the specified class file and return the preverified class.
+     *
+     * @param classStream
+     * @return
+     * @throws IOException
+     * @throws PreverificationException if the class has preverification
+     *             errors
+     * @throws IllegalStateException if the session has been closed
+     * @see ClassPreverifier#preverifyStream(InputStream, ClassLoader)
+     */
+    public InputStream preverifyStream(InputStream classStream)
+            throws IOException, PreverificationException {
+        PreverificationResults results = preverify(classStream);
+        if (results.isErrorResult()) {
+            throw new PreverificationException(results);
+        }
+
+        return new ByteArrayInputStream(results.getPreverifiedClassBytes());
+    }
+
+    /**
+     * Close the session. The classes cannot be preverified any more.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        // Class loaders are closeable since Java 7
+        if (classLoader instanceof Closeable) {
+            ((Closeable) classLoader).close();
+        }
+    }
+
+    /**
+     * Preverify the class read by the specified reader.
+     *
+     * @param classReader
+     * @return
+     */
+    private PreverificationResults preverify(ClassReader classReader) {
+        return classPreverifier.preverify(classReader, classLoader,
+                typeVerdicts);
+    }
+
+    /**
+     * Check that the session has not been closed yet.
+     *
+     * @throws IllegalStateException if the session has been closed
+     */
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Session has been closed");
+        }
+    }
+}
@@ -15,6 +15,9 @@
  */
 package v6.java.preverifier;
 
+import java.util.HashSet;
+import java.util.Set;
+
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.analysis.SimpleVerifier;
 
@@ -23,12 +26,14 @@ import org.objectweb.asm.tree.analysis.SimpleVerifier;
  * for use in locating and loading classes used during verification. This
  * verifier also extends the type system provided by the SimpleVerifier,
  * allowing boolean, byte, character and short arrays to be passed through the
- * type system.
+ * type system. The classes that cannot be found are remembered, so each of
+ * them is looked up by the class loader only once.
  * 
  * @author Craig Setera
  */
 public class SimpleVerifierPlusClassloader extends SimpleVerifier {
     private ClassLoader classLoader;
+    private Set<String> missingClasses;
 
     /**
      * Construct a new verifier.
@@ -38,6 +43,7 @@ public class SimpleVerifierPlusClassloader extends SimpleVerifier {
     public SimpleVerifierPlusClassloader(ClassLoader classLoader) {
         super();
         this.classLoader = classLoader;
+        this.missingClasses = new HashSet<String>();
     }
 
     /* (non-Javadoc)
@@ -50,13 +56,17 @@ public class SimpleVerifierPlusClassloader extends SimpleVerifier {
         if (classLoader == null) {
             clazz = super.getClass(t);
         } else {
+            String className = getRootClassName(t);
+            if (missingClasses.contains(className)) {
+                throw new MissingTypeException(className.replace('.', '/'));
+            }
+
             try {
-                String className = getRootClassName(t);
                 clazz = classLoader.loadClass(className);
 
             } catch (ClassNotFoundException e) {
-                e.printStackTrace();
-                throw new RuntimeException(e.toString());
+                missingClasses.add(className);
+                throw new MissingTypeException(className.replace('.', '/'));
             }
         }
 
@@ -0,0 +1,656 @@
+/**
+ * Copyright (c) 2010 Vít Šesták
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package v6.java.preverifier;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LineNumberNode;
+import org.objectweb.asm.tree.LocalVariableNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+
+/**
+ * An inliner of the subroutines of a method, i.e. the code called by the JSR
+ * and RET instructions, which are not allowed by the CLDC verifier. Every
+ * call of a subroutine is replaced by a copy of the subroutine, including
+ * the calls of the nested subroutines, the exception handlers and the local
+ * variables within it. The JSR instruction is replaced by pushing
+ * <code>null</code> instead of the return address and jumping to the copy,
+ * the RET instruction by jumping back after the call.
+ * <p>
+ * The instructions of each subroutine, as well as of the main code of the
+ * method, are found once by following the control flow from its start
+ * without entering the called subroutines. A subroutine includes the
+ * exception handlers protecting any of its instructions. Each copy then
+ * visits only the instructions of its subroutine and maps the labels by
+ * their positions among them, so the time is linear in the size of the
+ * inlined code. The unreachable instructions are left out.
+ * </p>
+ * <p>
+ * An instruction shared with a calling subroutine or the main code, such as
+ * the handler of a <code>synchronized</code> block around a
+ * <code>finally</code> block, is copied only once by the outermost caller
+ * and the other copies jump to it, the same way as by the JSR inliner of
+ * ASM.
+ * </p>
+ */
+class SubroutineInliner {
+
+    /** The instructions of a subroutine or of the main code. */
+    private static class Subroutine {
+        // The indices of the instructions, also in ascending order
+        BitSet memberSet;
+        int[] members;
+        // The positions of the labels among the instructions
+        Map<LabelNode, Integer> labelPositions;
+        // The positions that need a label, including the end position
+        boolean[] labelled;
+        // The try-catch blocks with their start and end positions
+        List<TryCatchBlockNode> tryCatchBlocks;
+        int[] tryCatchPositions;
+        // The local variables with their start and end positions
+        List<LocalVariableNode> localVariables;
+        int[] localVariablePositions;
+    }
+
+    /** A copy of a subroutine within the inlined code. */
+    private static class Instantiation {
+        Subroutine subroutine;
+        Instantiation parent;
+        LabelNode startLabel;
+        LabelNode returnLabel;
+        // The copies of the labels by their positions
+        LabelNode[] labels;
+
+        /**
+         * Construct a new copy of the specified subroutine called by the
+         * specified copy.
+         *
+         * @param subroutine
+         * @param parent the copy calling the subroutine or <code>null</code>
+         *            for the main code
+         */
+        Instantiation(Subroutine subroutine, Instantiation parent) {
+            this.subroutine = subroutine;
+            this.parent = parent;
+            this.startLabel = new LabelNode();
+            this.returnLabel = new LabelNode();
+        }
+    }
+
+    private MethodNode method;
+    private InsnList instructions;
+    private int[] tryCatchStarts;
+    private int[] tryCatchEnds;
+    private int[] tryCatchHandlers;
+    private Map<LabelNode, Subroutine> subroutines;
+    private BitSet sharedMembers;
+
+    /**
+     * Construct a new inliner of the specified method.
+     *
+     * @param method
+     */
+    SubroutineInliner(MethodNode method) {
+        this.method = method;
+        this.instructions = method.instructions;
+    }
+
+    /**
+     * Return a copy of the method with all the subroutines inlined.
+     *
+     * @return
+     * @throws AnalyzerException if a subroutine returns outside of a
+     *             subroutine or calls itself
+     */
+    MethodNode inline() throws AnalyzerException {
+        List<?> blocks = method.tryCatchBlocks;
+        tryCatchStarts = new int[blocks.size()];
+        tryCatchEnds = new int[blocks.size()];
+        tryCatchHandlers = new int[blocks.size()];
+        for (int i = 0; i < tryCatchStarts.length; i++) {
+            TryCatchBlockNode block = (TryCatchBlockNode) blocks.get(i);
+            tryCatchStarts[i] = instructions.indexOf(block.start);
+            tryCatchEnds[i] = instructions.indexOf(block.end);
+            tryCatchHandlers[i] = instructions.indexOf(block.handler);
+        }
+
+        Subroutine main = createSubroutine(0, true);
+        subroutines = new IdentityHashMap<LabelNode, Subroutine>();
+        for (int i = 0; i < instructions.size(); i++) {
+            AbstractInsnNode insnNode = instructions.get(i);
+            if (insnNode.getOpcode() == Opcodes.JSR) {
+                LabelNode label = ((JumpInsnNode) insnNode).label;
+                if (!subroutines.containsKey(label)) {
+                    subroutines.put(label, createSubroutine(instructions
+                            .indexOf(label), false));
+                }
+            }
+        }
+
+        // The instructions of more than one subroutine
+        sharedMembers = new BitSet(instructions.size());
+        BitSet allMembers = (BitSet) main.memberSet.clone();
+        for (Subroutine subroutine : subroutines.values()) {
+            BitSet shared = (BitSet) subroutine.memberSet.clone();
+            shared.and(allMembers);
+            sharedMembers.or(shared);
+            allMembers.or(subroutine.memberSet);
+        }
+
+        MethodNode inlinedMethod = copyMethodMetadata();
+        List<Instantiation> instantiations = new ArrayList<Instantiation>();
+        instantiations.add(new Instantiation(main, null));
+
+        // The copies are appended in the order of the calls
+        for (int i = 0; i < instantiations.size(); i++) {
+            emit(instantiations.get(i), inlinedMethod, instantiations);
+        }
+
+        inlinedMethod.maxStack = method.maxStack;
+        inlinedMethod.maxLocals = method.maxLocals;
+        return inlinedMethod;
+    }
+
+    /**
+     * Copy the declaration of the method without the code.
+     *
+     * @return
+     */
+    private MethodNode copyMethodMetadata() {
+        // The lists of the ASM tree nodes are raw
+        @SuppressWarnings("unchecked")
+        List<String> declaredExceptions = method.exceptions;
+        String[] exceptions = declaredExceptions
+                .toArray(new String[declaredExceptions.size()]);
+
+        MethodNode inlinedMethod = new MethodNode(method.access, method.name,
+                method.desc, method.signature, exceptions);
+        inlinedMethod.annotationDefault = method.annotationDefault;
+        inlinedMethod.visibleAnnotations = method.visibleAnnotations;
+        inlinedMethod.invisibleAnnotations = method.invisibleAnnotations;
+        inlinedMethod.visibleParameterAnnotations = method.visibleParameterAnnotations;
+        inlinedMethod.invisibleParameterAnnotations = method.invisibleParameterAnnotations;
+        inlinedMethod.attrs = method.attrs;
+
+        return inlinedMethod;
+    }
+
+    /**
+     * Find the instructions of the subroutine starting at the specified
+     * index and the try-catch blocks and local variables within them.
+     *
+     * @param start
+     * @param main whether the subroutine is the main code of the method
+     * @return
+     * @throws AnalyzerException if the main code contains a RET instruction
+     */
+    private Subroutine createSubroutine(int start, boolean main)
+            throws AnalyzerException {
+        BitSet memberSet = findMembers(start, main);
+
+        Subroutine subroutine = new Subroutine();
+        subroutine.memberSet = memberSet;
+        subroutine.members = new int[memberSet.cardinality()];
+        subroutine.labelPositions = new IdentityHashMap<LabelNode, Integer>();
+        int position = 0;
+        for (int i = memberSet.nextSetBit(0); i >= 0; i = memberSet
+                .nextSetBit(i + 1)) {
+            AbstractInsnNode insnNode = instructions.get(i);
+            if (insnNode instanceof LabelNode) {
+                subroutine.labelPositions.put((LabelNode) insnNode, Integer
+                        .valueOf(position));
+            }
+            subroutine.members[position++] = i;
+        }
+
+        // The number of the real instructions before each position
+        int[] realCounts = new int[subroutine.members.length + 1];
+        for (int i = 0; i < subroutine.members.length; i++) {
+            realCounts[i + 1] = realCounts[i]
+                    + (isReal(instructions.get(subroutine.members[i])) ? 1
+                            : 0);
+        }
+
+        subroutine.labelled = new boolean[subroutine.members.length + 1];
+        subroutine.tryCatchBlocks = new ArrayList<TryCatchBlockNode>();
+        List<Integer> tryCatchPositions = new ArrayList<Integer>();
+        for (int i = 0; i < tryCatchStarts.length; i++) {
+            int startPosition = getPosition(subroutine, tryCatchStarts[i]);
+            int endPosition = getPosition(subroutine, tryCatchEnds[i]);
+            if (realCounts[endPosition] > realCounts[startPosition]) {
+                TryCatchBlockNode block = (TryCatchBlockNode) method.tryCatchBlocks
+                        .get(i);
+                subroutine.tryCatchBlocks.add(block);
+                tryCatchPositions.add(Integer.valueOf(startPosition));
+                tryCatchPositions.add(Integer.valueOf(endPosition));
+                subroutine.labelled[startPosition] = true;
+                subroutine.labelled[endPosition] = true;
+            }
+        }
+        subroutine.tryCatchPositions = toArray(tryCatchPositions);
+
+        subroutine.localVariables = new ArrayList<LocalVariableNode>();
+        List<Integer> localVariablePositions = new ArrayList<Integer>();
+        if (method.localVariables != null) {
+            for (Object object : method.localVariables) {
+                LocalVariableNode localVariable = (LocalVariableNode) object;
+                int startPosition = getPosition(subroutine, instructions
+                        .indexOf(localVariable.start));
+                int endPosition = getPosition(subroutine, instructions
+                        .indexOf(localVariable.end));
+                if (realCounts[endPosition] > realCounts[startPosition]) {
+                    subroutine.localVariables.add(localVariable);
+                    localVariablePositions.add(Integer.valueOf(startPosition));
+                    localVariablePositions.add(Integer.valueOf(endPosition));
+                    subroutine.labelled[startPosition] = true;
+                    subroutine.labelled[endPosition] = true;
+                }
+            }
+        }
+        subroutine.localVariablePositions = toArray(localVariablePositions);
+
+        return subroutine;
+    }
+
+    /**
+     * Find the indices of the instructions reachable from the specified
+     * index without entering the called subroutines, together with the
+     * exception handlers protecting any of them.
+     *
+     * @param start
+     * @param main whether the instructions are the main code of the method
+     * @return
+     * @throws AnalyzerException if the main code contains a RET instruction
+     */
+    private BitSet findMembers(int start, boolean main)
+            throws AnalyzerException {
+        int instructionCount = instructions.size();
+        BitSet members = new BitSet(instructionCount);
+        int[] pending = new int[16];
+        int pendingCount = 0;
+        pending[pendingCount++] = start;
+
+        while (pendingCount > 0) {
+            while (pendingCount > 0) {
+                int index = pending[--pendingCount];
+                if ((index >= instructionCount) || members.get(index)) {
+                    continue;
+                }
+                members.set(index);
+
+                // Room for the successors of a switch at most
+                AbstractInsnNode insnNode = instructions.get(index);
+                int successorCount = getSuccessorCount(insnNode);
+                if (pendingCount + successorCount > pending.length) {
+                    int[] newPending = new int[Math.max(pending.length * 2,
+                            pendingCount + successorCount)];
+                    System.arraycopy(pending, 0, newPending, 0, pendingCount);
+                    pending = newPending;
+                }
+
+                int opcode = insnNode.getOpcode();
+                if (insnNode instanceof JumpInsnNode) {
+                    if (opcode == Opcodes.JSR) {
+                        // The called subroutine returns after the call
+                        pending[pendingCount++] = index + 1;
+                    } else {
+                        pending[pendingCount++] = instructions
+                                .indexOf(((JumpInsnNode) insnNode).label);
+                        if (opcode != Opcodes.GOTO) {
+                            pending[pendingCount++] = index + 1;
+                        }
+                    }
+                } else if (insnNode instanceof LookupSwitchInsnNode) {
+                    LookupSwitchInsnNode switchNode = (LookupSwitchInsnNode) insnNode;
+                    pendingCount = addLabels(pending, pendingCount,
+                            switchNode.dflt, switchNode.labels);
+                } else if (insnNode instanceof TableSwitchInsnNode) {
+                    TableSwitchInsnNode switchNode = (TableSwitchInsnNode) insnNode;
+                    pendingCount = addLabels(pending, pendingCount,
+                            switchNode.dflt, switchNode.labels);
+                } else if (opcode == Opcodes.RET) {
+                    if (main) {
+                        throw new AnalyzerException(insnNode,
+                                "RET instruction outside of a subroutine");
+                    }
+                } else if ((opcode != Opcodes.ATHROW)
+                        && ((opcode < Opcodes.IRETURN) || (opcode > Opcodes.RETURN))) {
+                    pending[pendingCount++] = index + 1;
+                }
+            }
+
+            // The handlers protecting the instructions found so far
+            for (int i = 0; i < tryCatchStarts.length; i++) {
+                if (!members.get(tryCatchHandlers[i])
+                        && containsReal(members, tryCatchStarts[i],
+                                tryCatchEnds[i])) {
+                    pending[pendingCount++] = tryCatchHandlers[i];
+                    break;
+                }
+            }
+        }
+
+        return members;
+    }
+
+    /**
+     * Return the maximum number of the successors the specified instruction
+     * adds to the pending instructions.
+     *
+     * @param insnNode
+     * @return
+     */
+    private int getSuccessorCount(AbstractInsnNode insnNode) {
+        if (insnNode instanceof LookupSwitchInsnNode) {
+            return ((LookupSwitchInsnNode) insnNode).labels.size() + 1;
+        } else if (insnNode instanceof TableSwitchInsnNode) {
+            return ((TableSwitchInsnNode) insnNode).labels.size() + 1;
+        }
+
+        return 2;
+    }
+
+    /**
+     * Add the indices of the specified switch labels to the pending
+     * instructions and return their new number.
+     *
+     * @param pending
+     * @param pendingCount
+     * @param defaultLabel
+     * @param labels
+     * @return
+     */
+    private int addLabels(int[] pending, int pendingCount,
+            LabelNode defaultLabel, List<?> labels) {
+        pending[pendingCount++] = instructions.indexOf(defaultLabel);
+        for (Object label : labels) {
+            pending[pendingCount++] = instructions.indexOf((LabelNode) label);
+        }
+
+        return pendingCount;
+    }
+
+    /**
+     * Return a boolean indicating whether any of the specified instructions
+     * from the start index to the end index (exclusive) is a real
+     * instruction.
+     *
+     * @param members
+     * @param start
+     * @param end
+     * @return
+     */
+    private boolean containsReal(BitSet members, int start, int end) {
+        for (int i = members.nextSetBit(start); (i >= 0) && (i < end); i = members
+                .nextSetBit(i + 1)) {
+            if (isReal(instructions.get(i))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Return a boolean indicating whether the specified instruction is a
+     * real instruction rather than a label, a line number or a frame.
+     *
+     * @param insnNode
+     * @return
+     */
+    private boolean isReal(AbstractInsnNode insnNode) {
+        return insnNode.getOpcode() >= 0;
+    }
+
+    /**
+     * Return the position of the first instruction of the subroutine at the
+     * specified index or after it, or the number of its instructions if
+     * there is none.
+     *
+     * @param subroutine
+     * @param index
+     * @return
+     */
+    private int getPosition(Subroutine subroutine, int index) {
+        int low = 0;
+        int high = subroutine.members.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (subroutine.members[middle] < index) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * Copy the instructions, the try-catch blocks and the local variables of
+     * the specified copy of a subroutine into the specified method. The
+     * called subroutines are added to the list of the copies.
+     *
+     * @param instantiation
+     * @param inlinedMethod
+     * @param instantiations
+     * @throws AnalyzerException if a subroutine calls itself
+     */
+    private void emit(Instantiation instantiation, MethodNode inlinedMethod,
+            List<Instantiation> instantiations) throws AnalyzerException {
+        Subroutine subroutine = instantiation.subroutine;
+        int[] members = subroutine.members;
+        InsnList inlinedInstructions = inlinedMethod.instructions;
+
+        LabelNode[] labels = new LabelNode[members.length + 1];
+        for (int i = 0; i <= members.length; i++) {
+            if (subroutine.labelled[i]
+                    || ((i < members.length) && (instructions.get(members[i]) instanceof LabelNode))) {
+                labels[i] = new LabelNode();
+            }
+        }
+        instantiation.labels = labels;
+
+        // The number of the real instructions copied before each position
+        int[] copiedCounts = new int[members.length + 1];
+
+        inlinedInstructions.add(instantiation.startLabel);
+        for (int i = 0; i < members.length; i++) {
+            copiedCounts[i + 1] = copiedCounts[i];
+            if (labels[i] != null) {
+                inlinedInstructions.add(labels[i]);
+            }
+
+            AbstractInsnNode insnNode = instructions.get(members[i]);
+            int opcode = insnNode.getOpcode();
+            if ((insnNode instanceof LabelNode)
+                    || (getOwner(instantiation, members[i]) != instantiation)) {
+                // Already added or copied by a caller
+                continue;
+            } else if (isReal(insnNode)) {
+                copiedCounts[i + 1]++;
+            }
+
+            if (insnNode instanceof LineNumberNode) {
+                LineNumberNode lineNumber = (LineNumberNode) insnNode;
+                Integer start = subroutine.labelPositions
+                        .get(lineNumber.start);
+                if (start != null) {
+                    inlinedInstructions.add(new LineNumberNode(
+                            lineNumber.line, labels[start.intValue()]));
+                }
+            } else if (!isReal(insnNode)) {
+                // The frames are computed again
+            } else if (opcode == Opcodes.JSR) {
+                Subroutine called = subroutines
+                        .get(((JumpInsnNode) insnNode).label);
+                for (Instantiation caller = instantiation; caller != null; caller = caller.parent) {
+                    if (caller.subroutine == called) {
+                        throw new AnalyzerException(insnNode,
+                                "Recursive invocation of a subroutine");
+                    }
+                }
+
+                Instantiation calledInstantiation = new Instantiation(called,
+                        instantiation);
+                instantiations.add(calledInstantiation);
+                inlinedInstructions.add(new InsnNode(Opcodes.ACONST_NULL));
+                inlinedInstructions.add(new JumpInsnNode(Opcodes.GOTO,
+                        calledInstantiation.startLabel));
+                inlinedInstructions.add(calledInstantiation.returnLabel);
+            } else if (opcode == Opcodes.RET) {
+                inlinedInstructions.add(new JumpInsnNode(Opcodes.GOTO,
+                        instantiation.returnLabel));
+            } else if (insnNode instanceof JumpInsnNode) {
+                inlinedInstructions.add(new JumpInsnNode(opcode, getLabel(
+                        instantiation, ((JumpInsnNode) insnNode).label)));
+            } else if (insnNode instanceof LookupSwitchInsnNode) {
+                LookupSwitchInsnNode switchNode = (LookupSwitchInsnNode) insnNode;
+                int[] keys = new int[switchNode.keys.size()];
+                for (int j = 0; j < keys.length; j++) {
+                    keys[j] = ((Integer) switchNode.keys.get(j)).intValue();
+                }
+                inlinedInstructions.add(new LookupSwitchInsnNode(getLabel(
+                        instantiation, switchNode.dflt), keys, getLabels(
+                        instantiation, switchNode.labels)));
+            } else if (insnNode instanceof TableSwitchInsnNode) {
+                TableSwitchInsnNode switchNode = (TableSwitchInsnNode) insnNode;
+                inlinedInstructions.add(new TableSwitchInsnNode(
+                        switchNode.min, switchNode.max, getLabel(
+                                instantiation, switchNode.dflt), getLabels(
+                                instantiation, switchNode.labels)));
+            } else {
+                inlinedInstructions.add(insnNode.clone(Collections.EMPTY_MAP));
+            }
+        }
+        if (labels[members.length] != null) {
+            inlinedInstructions.add(labels[members.length]);
+        }
+
+        // The ranges without any copied instruction are left out, the lists
+        // of the ASM tree nodes are raw
+        @SuppressWarnings("unchecked")
+        List<TryCatchBlockNode> inlinedTryCatchBlocks =
+                inlinedMethod.tryCatchBlocks;
+        @SuppressWarnings("unchecked")
+        List<LocalVariableNode> inlinedLocalVariables =
+                inlinedMethod.localVariables;
+        int[] positions = subroutine.tryCatchPositions;
+        for (int i = 0; i < subroutine.tryCatchBlocks.size(); i++) {
+            int start = positions[i * 2];
+            int end = positions[i * 2 + 1];
+            if (copiedCounts[end] > copiedCounts[start]) {
+                TryCatchBlockNode block = subroutine.tryCatchBlocks.get(i);
+                inlinedTryCatchBlocks.add(new TryCatchBlockNode(
+                        labels[start], labels[end], getLabel(instantiation,
+                                block.handler), block.type));
+            }
+        }
+
+        positions = subroutine.localVariablePositions;
+        for (int i = 0; i < subroutine.localVariables.size(); i++) {
+            int start = positions[i * 2];
+            int end = positions[i * 2 + 1];
+            if (copiedCounts[end] > copiedCounts[start]) {
+                LocalVariableNode localVariable = subroutine.localVariables
+                        .get(i);
+                inlinedLocalVariables.add(new LocalVariableNode(
+                        localVariable.name, localVariable.desc,
+                        localVariable.signature, labels[start], labels[end],
+                        localVariable.index));
+            }
+        }
+    }
+
+    /**
+     * Return the copy that copies the instruction at the specified index for
+     * the specified copy, i.e. the outermost of its callers containing the
+     * instruction.
+     *
+     * @param instantiation
+     * @param index
+     * @return
+     */
+    private Instantiation getOwner(Instantiation instantiation, int index) {
+        Instantiation owner = instantiation;
+        if (sharedMembers.get(index)) {
+            for (Instantiation caller = instantiation.parent; caller != null; caller = caller.parent) {
+                if (caller.subroutine.memberSet.get(index)) {
+                    owner = caller;
+                }
+            }
+        }
+
+        return owner;
+    }
+
+    /**
+     * Return the copy of the specified label to jump to from the specified
+     * copy of a subroutine.
+     *
+     * @param instantiation
+     * @param label
+     * @return
+     */
+    private LabelNode getLabel(Instantiation instantiation, LabelNode label) {
+        Instantiation owner = getOwner(instantiation, instructions
+                .indexOf(label));
+        Integer position = owner.subroutine.labelPositions.get(label);
+        return owner.labels[position.intValue()];
+    }
+
+    /**
+     * Return the copies of the specified labels to jump to from the
+     * specified copy of a subroutine.
+     *
+     * @param instantiation
+     * @param switchLabels
+     * @return
+     */
+    private LabelNode[] getLabels(Instantiation instantiation,
+            List<?> switchLabels) {
+        LabelNode[] copies = new LabelNode[switchLabels.size()];
+        for (int i = 0; i < copies.length; i++) {
+            copies[i] = getLabel(instantiation, (LabelNode) switchLabels
+                    .get(i));
+        }
+
+        return copies;
+    }
+
+    /**
+     * Return the specified integers as an array.
+     *
+     * @param integers
+     * @return
+     */
+    private static int[] toArray(List<Integer> integers) {
+        int[] array = new int[integers.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = integers.get(i).intValue();
+        }
+
+        return array;
+    }
+}
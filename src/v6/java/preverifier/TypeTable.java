@@ -0,0 +1,305 @@
+/**
+ * Copyright (c) 2010 Vít Šesták
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package v6.java.preverifier;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A table interning the type descriptors as dense integer IDs. The class of
+ * an object type is identified by the ID of its descriptor. For each type,
+ * the table keeps the ID of its root class, i.e. the element class of an
+ * array or the wrapper class of a primitive type, and for each class the ID
+ * of its superclass read from the class hierarchy, all of them in primitive
+ * arrays indexed by the IDs.
+ * <p>
+ * The table can be used by several threads at once. The IDs are assigned
+ * under the lock of the table, but they are looked up without locking.
+ * </p>
+ */
+class TypeTable {
+
+    /** The superclass ID of the classes that cannot be found. */
+    static final int MISSING_CLASS = -1;
+
+    /** The superclass ID of the classes without a superclass. */
+    static final int NO_SUPERCLASS = -2;
+
+    // The superclass links are stored shifted by one, so zero means unknown
+    private static final int UNKNOWN_LINK = 0;
+    private static final int INITIAL_CAPACITY = 256;
+
+    private ClassHierarchy classHierarchy;
+    private ConcurrentHashMap<String, Integer> ids;
+    private ConcurrentHashMap<String, int[]> methodTypeIds;
+
+    // Indexed by the IDs, replaced when they grow
+    private volatile int[] rootIds;
+    private volatile String[] internalNames;
+    private volatile int[] superclassLinks;
+    private int size;
+
+    /**
+     * Construct a new table of the types of the specified hierarchy.
+     *
+     * @param classHierarchy
+     */
+    TypeTable(ClassHierarchy classHierarchy) {
+        this.classHierarchy = classHierarchy;
+        this.ids = new ConcurrentHashMap<String, Integer>();
+        this.methodTypeIds = new ConcurrentHashMap<String, int[]>();
+        this.rootIds = new int[INITIAL_CAPACITY];
+        this.internalNames = new String[INITIAL_CAPACITY];
+        this.superclassLinks = new int[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Return the ID of the specified type descriptor.
+     *
+     * @param descriptor
+     * @return
+     */
+    int getId(String descriptor) {
+        Integer id = ids.get(descriptor);
+        return (id != null) ? id.intValue() : intern(descriptor);
+    }
+
+    /**
+     * Return the ID of the class with the specified internal name.
+     *
+     * @param internalName
+     * @return
+     */
+    int getClassId(String internalName) {
+        return getId("L" + internalName + ";");
+    }
+
+    /**
+     * Return the number of the IDs assigned so far. All the IDs are less than
+     * this number.
+     *
+     * @return
+     */
+    int size() {
+        return ids.size();
+    }
+
+    /**
+     * Return the ID of the root class of the specified type.
+     *
+     * @param id
+     * @return
+     */
+    int getRootId(int id) {
+        return rootIds[id];
+    }
+
+    /**
+     * Return the internal name of the specified class.
+     *
+     * @param classId
+     * @return
+     */
+    String getInternalName(int classId) {
+        return internalNames[classId];
+    }
+
+    /**
+     * Return the ID of the superclass of the specified class,
+     * {@link #NO_SUPERCLASS} if it has none or {@link #MISSING_CLASS} if the
+     * class cannot be found.
+     *
+     * @param classId
+     * @return
+     */
+    int getSuperclassId(int classId) {
+        int link = superclassLinks[classId];
+
+        if (link == UNKNOWN_LINK) {
+            ClassInfo classInfo = classHierarchy
+                    .getClassInfo(internalNames[classId]);
+            if (classInfo == null) {
+                link = MISSING_CLASS;
+            } else if (classInfo.getSuperName() == null) {
+                link = NO_SUPERCLASS;
+            } else {
+                link = getClassId(classInfo.getSuperName()) + 1;
+            }
+
+            synchronized (this) {
+                superclassLinks[classId] = link;
+            }
+        }
+
+        return (link > 0) ? link - 1 : link;
+    }
+
+    /**
+     * Return the internal name of the class missing from the superclass
+     * chain of the specified class or <code>null</code> if the whole chain
+     * can be found.
+     *
+     * @param classId
+     * @return
+     */
+    String getMissingClass(int classId) {
+        // A broken hierarchy may contain a cycle
+        for (int depth = size(); depth >= 0; depth--) {
+            int superclassId = getSuperclassId(classId);
+
+            if (superclassId == MISSING_CLASS) {
+                return getInternalName(classId);
+            } else if (superclassId == NO_SUPERCLASS) {
+                return null;
+            }
+
+            classId = superclassId;
+        }
+
+        return null;
+    }
+
+    /**
+     * Return the IDs of the return type followed by the IDs of the argument
+     * types of the specified method descriptor.
+     *
+     * @param methodDescriptor
+     * @return
+     */
+    int[] getMethodTypeIds(String methodDescriptor) {
+        int[] typeIds = methodTypeIds.get(methodDescriptor);
+
+        if (typeIds == null) {
+            List<String> descriptors = new ArrayList<String>();
+            int index = 1;
+            while (methodDescriptor.charAt(index) != ')') {
+                int end = getDescriptorEnd(methodDescriptor, index);
+                descriptors.add(methodDescriptor.substring(index, end));
+                index = end;
+            }
+
+            typeIds = new int[descriptors.size() + 1];
+            typeIds[0] = getId(methodDescriptor.substring(index + 1));
+            for (int i = 0; i < descriptors.size(); i++) {
+                typeIds[i + 1] = getId(descriptors.get(i));
+            }
+
+            methodTypeIds.put(methodDescriptor, typeIds);
+        }
+
+        return typeIds;
+    }
+
+    /**
+     * Assign a new ID to the specified descriptor unless it has one already.
+     *
+     * @param descriptor
+     * @return
+     */
+    private synchronized int intern(String descriptor) {
+        Integer existingId = ids.get(descriptor);
+        if (existingId != null) {
+            return existingId.intValue();
+        }
+
+        String rootDescriptor = getRootDescriptor(descriptor);
+        int rootId = rootDescriptor.equals(descriptor) ? size
+                : getId(rootDescriptor);
+
+        int id = size++;
+        if (id == rootIds.length) {
+            grow();
+        }
+        rootIds[id] = rootId;
+        if (descriptor.charAt(0) == 'L') {
+            internalNames[id] = descriptor.substring(1,
+                    descriptor.length() - 1);
+        }
+
+        // Published only when the arrays are filled in
+        ids.put(descriptor, Integer.valueOf(id));
+        return id;
+    }
+
+    /**
+     * Double the capacity of the arrays.
+     */
+    private void grow() {
+        int length = rootIds.length;
+        int capacity = length * 2;
+
+        int[] newRootIds = new int[capacity];
+        System.arraycopy(rootIds, 0, newRootIds, 0, length);
+        String[] newInternalNames = new String[capacity];
+        System.arraycopy(internalNames, 0, newInternalNames, 0, length);
+        int[] newSuperclassLinks = new int[capacity];
+        System.arraycopy(superclassLinks, 0, newSuperclassLinks, 0, length);
+
+        rootIds = newRootIds;
+        internalNames = newInternalNames;
+        superclassLinks = newSuperclassLinks;
+    }
+
+    /**
+     * Return the descriptor of the root class of the specified type.
+     *
+     * @param descriptor
+     * @return
+     */
+    private String getRootDescriptor(String descriptor) {
+        int index = 0;
+        while (descriptor.charAt(index) == '[') {
+            index++;
+        }
+
+        switch (descriptor.charAt(index)) {
+        case 'Z':
+            return "Ljava/lang/Boolean;";
+        case 'C':
+            return "Ljava/lang/Character;";
+        case 'B':
+            return "Ljava/lang/Byte;";
+        case 'S':
+            return "Ljava/lang/Short;";
+        case 'I':
+            return "Ljava/lang/Integer;";
+        case 'F':
+            return "Ljava/lang/Float;";
+        case 'J':
+            return "Ljava/lang/Long;";
+        case 'D':
+            return "Ljava/lang/Double;";
+        case 'V':
+            return "Ljava/lang/Void;";
+        default:
+            return descriptor.substring(index);
+        }
+    }
+
+    /**
+     * Return the index following the type descriptor starting at the
+     * specified index.
+     *
+     * @param descriptor
+     * @param index
+     * @return
+     */
+    private int getDescriptorEnd(String descriptor, int index) {
+        while (descriptor.charAt(index) == '[') {
+            index++;
+        }
+
+        if (descriptor.charAt(index) == 'L') {
+            index = descriptor.indexOf(';', index);
+        }
+
+        return index + 1;
+    }
+}
@@ -0,0 +1,537 @@
+/**
+ * Copyright (c) 2010 Vít Šesták
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package v6.java.preverifier;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.objectweb.asm.ClassReader;
+
+import v6.java.preverifier.results.PreverificationErrorType;
+
+/**
+ * A process-wide cache of the type validation results and the class
+ * hierarchy of a classpath. The caches are shared by all the classes
+ * preverified with the same classpath, even by different preverifiers and
+ * class loaders. Each type is validated only once, even if several threads
+ * ask for it at the same time.
+ * <p>
+ * The classpath of a {@link URLClassLoader} of local archives is identified
+ * by its URLs, the size and modification time of its archives and its parent
+ * class loader, so the cache is not used any more once a classpath archive
+ * changes. The classes of such a classpath are looked up in a
+ * {@link ClasspathIndex}, stored in the index directory if there is one.
+ * Other class loaders are identified by themselves, as the classes are read
+ * through them. The platform hierarchy used instead of the platform archives
+ * and the index directory are a part of the identity as well. Only a few
+ * most recently used classpaths are cached.
+ * </p>
+ * <p>
+ * The changes of the files in a classpath directory cannot be detected that
+ * cheaply, so the cache of a classpath with a directory belongs to its class
+ * loader and it is dropped together with the class loader. The
+ * preverifiers create a class loader for every call, so the classes found
+ * missing by one call, or by one session, are looked up again by the next
+ * one.
+ * </p>
+ */
+class TypeVerdictCache {
+
+    private static final int MAXIMUM_INSTANCES = 8;
+
+    private static final Map<Object, TypeVerdictCache> instances = new LinkedHashMap<Object, TypeVerdictCache>(
+            16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(
+                Map.Entry<Object, TypeVerdictCache> eldest) {
+            return size() > MAXIMUM_INSTANCES;
+        }
+    };
+
+    // The caches of the classpaths with directories by their class loaders
+    private static final Map<ClassLoader, Map<Object, TypeVerdictCache>> loaderInstances = new WeakHashMap<ClassLoader, Map<Object, TypeVerdictCache>>();
+
+    /**
+     * Return the cache of the classpath of the specified class loader.
+     *
+     * @param classLoader
+     * @return
+     */
+    static TypeVerdictCache getInstance(ClassLoader classLoader) {
+        return getInstance(classLoader, null, null);
+    }
+
+    /**
+     * Return the cache of the specified platform hierarchy together with the
+     * classpath of the specified class loader.
+     *
+     * @param classLoader
+     * @param platformHierarchy the platform or <code>null</code> if the
+     *            platform classes are on the classpath
+     * @param indexDirectory the directory the classpath indexes are stored
+     *            in or <code>null</code> if they are not stored
+     * @return
+     */
+    static TypeVerdictCache getInstance(ClassLoader classLoader,
+            PlatformHierarchy platformHierarchy, File indexDirectory) {
+        Object classpathKey = getClasspathKey(classLoader);
+        if (classpathKey == null) {
+            return getLoaderInstance(classLoader, platformHierarchy,
+                    indexDirectory);
+        }
+
+        Object key = Arrays.asList(platformHierarchy, indexDirectory,
+                classpathKey);
+        synchronized (instances) {
+            TypeVerdictCache instance = instances.get(key);
+            if (instance == null) {
+                instance = new TypeVerdictCache(classLoader,
+                        platformHierarchy, indexDirectory);
+                instances.put(key, instance);
+            }
+
+            return instance;
+        }
+    }
+
+    /**
+     * Return the cache of the specified platform hierarchy together with the
+     * classpath with a directory of the specified class loader, kept only
+     * as long as the class loader. Such a cache does not refer to the class
+     * loader, as the classes are read by a {@link ClasspathIndex}.
+     *
+     * @param classLoader
+     * @param platformHierarchy
+     * @param indexDirectory
+     * @return
+     */
+    private static TypeVerdictCache getLoaderInstance(
+            ClassLoader classLoader, PlatformHierarchy platformHierarchy,
+            File indexDirectory) {
+        synchronized (loaderInstances) {
+            Map<Object, TypeVerdictCache> settingInstances = loaderInstances
+                    .get(classLoader);
+            if (settingInstances == null) {
+                settingInstances = new HashMap<Object, TypeVerdictCache>();
+                loaderInstances.put(classLoader, settingInstances);
+            }
+
+            Object key = Arrays.asList(platformHierarchy, indexDirectory);
+            TypeVerdictCache instance = settingInstances.get(key);
+            if (instance == null) {
+                instance = new TypeVerdictCache(classLoader,
+                        platformHierarchy, indexDirectory);
+                settingInstances.put(key, instance);
+            }
+
+            return instance;
+        }
+    }
+
+    /**
+     * Return the key identifying the classpath of the specified class loader
+     * or <code>null</code> if the classpath contains a directory.
+     *
+     * @param classLoader
+     * @return
+     */
+    private static Object getClasspathKey(ClassLoader classLoader) {
+        if (!ClasspathIndex.isIndexable(classLoader)) {
+            // The cache reads the classes through the class loader itself
+            return classLoader;
+        }
+
+        List<Object> key = new ArrayList<Object>();
+        key.add(classLoader.getParent());
+        for (URL url : ((URLClassLoader) classLoader).getURLs()) {
+            File file = ClasspathIndex.getFile(url);
+            if (file.isDirectory()) {
+                // A class added into the directory would not change the key
+                return null;
+            }
+
+            key.add(file.getPath());
+            key.add(Long.valueOf(file.length()));
+            key.add(Long.valueOf(file.lastModified()));
+        }
+
+        return key;
+    }
+
+    private static final String OBJECT_DESCRIPTOR = "Ljava/lang/Object;";
+    private static final String FLOAT_DESCRIPTOR = "Ljava/lang/Float;";
+    private static final String DOUBLE_DESCRIPTOR = "Ljava/lang/Double;";
+
+    // The tags of the constant pool items referring to types
+    private static final int CLASS_TAG = 7;
+    private static final int NAME_AND_TYPE_TAG = 12;
+
+    // The error types indexed by their codes
+    private static final PreverificationErrorType[] ERROR_TYPES = {
+            PreverificationErrorType.NO_ERROR, PreverificationErrorType.NATIVE,
+            PreverificationErrorType.FLOATING_POINT,
+            PreverificationErrorType.FINALIZERS,
+            PreverificationErrorType.MISSING_TYPE,
+            PreverificationErrorType.UNKNOWN_ERROR };
+
+    private ClassHierarchy classHierarchy;
+    private TypeTable typeTable;
+    private CommonSuperclassTable commonSuperclasses;
+    private int objectId;
+    private int floatId;
+    private int doubleId;
+
+    // The verdicts of the root classes indexed by their IDs, stored as the
+    // error code plus one, so zero means unknown
+    private volatile byte[] verdicts;
+    private volatile byte[] floatingPointVerdicts;
+
+    private ConcurrentHashMap<Integer, Future<PreverificationErrorType>> pendingVerdicts;
+    private ConcurrentHashMap<Integer, Future<PreverificationErrorType>> pendingFloatingPointVerdicts;
+
+    /**
+     * Construct a new cache of the platform and the classpath of the
+     * specified class loader, not shared with the other users of the same
+     * classpath.
+     *
+     * @param classLoader
+     * @param platformHierarchy the platform or <code>null</code>
+     * @param indexDirectory the directory the classpath indexes are stored
+     *            in or <code>null</code>
+     */
+    TypeVerdictCache(ClassLoader classLoader,
+            PlatformHierarchy platformHierarchy, File indexDirectory) {
+        IClassInfoSource source;
+        if (ClasspathIndex.isIndexable(classLoader)) {
+            source = new ClasspathIndex((URLClassLoader) classLoader,
+                    indexDirectory);
+        } else {
+            source = new ClassLoaderClassInfoSource(classLoader);
+        }
+        if (platformHierarchy != null) {
+            source = new PlatformClassInfoSource(platformHierarchy, source);
+        }
+
+        classHierarchy = new ClassHierarchy(source);
+        typeTable = new TypeTable(classHierarchy);
+        commonSuperclasses = new CommonSuperclassTable(classHierarchy,
+                typeTable);
+        objectId = typeTable.getId(OBJECT_DESCRIPTOR);
+        floatId = typeTable.getId(FLOAT_DESCRIPTOR);
+        doubleId = typeTable.getId(DOUBLE_DESCRIPTOR);
+
+        verdicts = new byte[0];
+        floatingPointVerdicts = new byte[0];
+        pendingVerdicts = new ConcurrentHashMap<Integer, Future<PreverificationErrorType>>();
+        pendingFloatingPointVerdicts = new ConcurrentHashMap<Integer, Future<PreverificationErrorType>>();
+    }
+
+    /**
+     * Return the hierarchy of the classpath.
+     *
+     * @return
+     */
+    ClassHierarchy getClassHierarchy() {
+        return classHierarchy;
+    }
+
+    /**
+     * Return the table of the types of the classpath.
+     *
+     * @return
+     */
+    TypeTable getTypeTable() {
+        return typeTable;
+    }
+
+    /**
+     * Return the table of the common superclasses of the classpath.
+     *
+     * @return
+     */
+    CommonSuperclassTable getCommonSuperclassTable() {
+        return commonSuperclasses;
+    }
+
+    /**
+     * Return the result of the validation of the type with the specified
+     * descriptor.
+     *
+     * @param descriptor
+     * @param floatingPointAllowed
+     * @return
+     */
+    PreverificationErrorType getVerdict(String descriptor,
+            boolean floatingPointAllowed) {
+        return getVerdict(typeTable.getId(descriptor), floatingPointAllowed);
+    }
+
+    /**
+     * Return the result of the validation of the type with the specified ID.
+     * If the root class of the type has not been validated yet, it is
+     * validated on the calling thread, while the other threads asking for
+     * the same class wait for the result.
+     *
+     * @param typeId
+     * @param floatingPointAllowed
+     * @return
+     */
+    PreverificationErrorType getVerdict(int typeId,
+            boolean floatingPointAllowed) {
+        final int rootId = typeTable.getRootId(typeId);
+
+        byte[] rootVerdicts = floatingPointAllowed ? floatingPointVerdicts
+                : verdicts;
+        if ((rootId < rootVerdicts.length) && (rootVerdicts[rootId] != 0)) {
+            return ERROR_TYPES[rootVerdicts[rootId] - 1];
+        }
+
+        ConcurrentHashMap<Integer, Future<PreverificationErrorType>> pending = floatingPointAllowed ? pendingFloatingPointVerdicts
+                : pendingVerdicts;
+        Integer key = Integer.valueOf(rootId);
+
+        Future<PreverificationErrorType> verdict = pending.get(key);
+        if (verdict == null) {
+            final boolean floatingPoint = floatingPointAllowed;
+            FutureTask<PreverificationErrorType> task = new FutureTask<PreverificationErrorType>(
+                    new Callable<PreverificationErrorType>() {
+                        public PreverificationErrorType call() {
+                            return validate(rootId, floatingPoint);
+                        }
+                    });
+            verdict = pending.putIfAbsent(key, task);
+            if (verdict == null) {
+                verdict = task;
+                task.run();
+            }
+        }
+
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    PreverificationErrorType errorType = verdict.get();
+                    setVerdict(rootId, floatingPointAllowed, errorType);
+                    pending.remove(key, verdict);
+                    return errorType;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            // Let the next caller try again
+            pending.remove(key, verdict);
+
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("Type validation failed", cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Start validating the types referred to by the constant pool of the
+     * specified class on the specified executor, so they are likely to be
+     * known or being validated once the class is visited. Only the root
+     * classes without a verdict are validated, each of them by its own task.
+     * The failures of the tasks are ignored, they are reported again when
+     * the type is needed by the visit.
+     *
+     * @param classReader
+     * @param floatingPointAllowed
+     * @param executor
+     */
+    void prefetch(ClassReader classReader, boolean floatingPointAllowed,
+            Executor executor) {
+        byte[] rootVerdicts = floatingPointAllowed ? floatingPointVerdicts
+                : verdicts;
+        final boolean floatingPoint = floatingPointAllowed;
+        BitSet submittedIds = new BitSet();
+
+        for (int typeId : getReferencedTypeIds(classReader)) {
+            final int rootId = typeTable.getRootId(typeId);
+            if (((rootId < rootVerdicts.length) && (rootVerdicts[rootId] != 0))
+                    || submittedIds.get(rootId)) {
+                continue;
+            }
+            submittedIds.set(rootId);
+
+            try {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            getVerdict(rootId, floatingPoint);
+                        } catch (RuntimeException e) {
+                            // The visit asks for the type again
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // The executor is shutting down, the visit does the work
+                return;
+            }
+        }
+    }
+
+    /**
+     * Return the IDs of the types referred to by the class and name-and-type
+     * items of the constant pool of the specified class. Both the field and
+     * the method descriptors are included, whether the class declares or
+     * uses the members.
+     *
+     * @param classReader
+     * @return
+     */
+    int[] getReferencedTypeIds(ClassReader classReader) {
+        int itemCount = classReader.readUnsignedShort(8);
+        char[] buffer = new char[classReader.header];
+        List<Integer> typeIds = new ArrayList<Integer>();
+
+        for (int i = 1; i < itemCount; i++) {
+            int offset = classReader.getItem(i);
+            if (offset == 0) {
+                // The second slot of a long or double constant
+                continue;
+            }
+
+            int tag = classReader.readByte(offset - 1);
+            if (tag == CLASS_TAG) {
+                String name = classReader.readUTF8(offset, buffer);
+                typeIds.add(Integer.valueOf(typeTable
+                        .getId((name.charAt(0) == '[') ? name : "L" + name
+                                + ";")));
+            } else if (tag == NAME_AND_TYPE_TAG) {
+                String descriptor = classReader.readUTF8(offset + 2, buffer);
+                if (descriptor.charAt(0) == '(') {
+                    for (int typeId : typeTable.getMethodTypeIds(descriptor)) {
+                        typeIds.add(Integer.valueOf(typeId));
+                    }
+                } else {
+                    typeIds.add(Integer.valueOf(typeTable.getId(descriptor)));
+                }
+            }
+        }
+
+        int[] result = new int[typeIds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = typeIds.get(i).intValue();
+        }
+
+        return result;
+    }
+
+    /**
+     * Return the internal name of the class missing from the hierarchy of
+     * the type with the specified descriptor or <code>null</code> if the
+     * whole hierarchy can be found.
+     *
+     * @param descriptor
+     * @return
+     */
+    String getMissingClass(String descriptor) {
+        return getMissingClass(typeTable.getId(descriptor));
+    }
+
+    /**
+     * Return the internal name of the class missing from the hierarchy of
+     * the type with the specified ID or <code>null</code> if the whole
+     * hierarchy can be found.
+     *
+     * @param typeId
+     * @return
+     */
+    String getMissingClass(int typeId) {
+        return typeTable.getMissingClass(typeTable.getRootId(typeId));
+    }
+
+    /**
+     * Validate the hierarchy of the specified class. A hierarchy is valid if
+     * all of its classes can be found and, unless the floating point types
+     * are allowed, it does not contain them.
+     *
+     * @param classId
+     * @param floatingPointAllowed
+     * @return
+     */
+    private PreverificationErrorType validate(int classId,
+            boolean floatingPointAllowed) {
+        // A broken hierarchy may contain a cycle
+        for (int depth = typeTable.size(); depth >= 0; depth--) {
+            int superclassId = typeTable.getSuperclassId(classId);
+
+            if (superclassId == TypeTable.MISSING_CLASS) {
+                return PreverificationErrorType.MISSING_TYPE;
+            } else if ((superclassId == TypeTable.NO_SUPERCLASS)
+                    || (classId == objectId)) {
+                return PreverificationErrorType.NO_ERROR;
+            } else if (!floatingPointAllowed
+                    && ((classId == floatId) || (classId == doubleId))) {
+                return PreverificationErrorType.FLOATING_POINT;
+            }
+
+            classId = superclassId;
+        }
+
+        return PreverificationErrorType.MISSING_TYPE;
+    }
+
+    /**
+     * Record the verdict of the specified root class.
+     *
+     * @param rootId
+     * @param floatingPointAllowed
+     * @param errorType
+     */
+    private synchronized void setVerdict(int rootId,
+            boolean floatingPointAllowed, PreverificationErrorType errorType) {
+        byte[] rootVerdicts = floatingPointAllowed ? floatingPointVerdicts
+                : verdicts;
+
+        if (rootId >= rootVerdicts.length) {
+            byte[] newVerdicts = new byte[Math.max(rootId + 1,
+                    typeTable.size())];
+            System.arraycopy(rootVerdicts, 0, newVerdicts, 0,
+                    rootVerdicts.length);
+            rootVerdicts = newVerdicts;
+
+            if (floatingPointAllowed) {
+                floatingPointVerdicts = rootVerdicts;
+            } else {
+                verdicts = rootVerdicts;
+            }
+        }
+
+        rootVerdicts[rootId] = (byte) (errorType.getErrorCode() + 1);
+    }
+}
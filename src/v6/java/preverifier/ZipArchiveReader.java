@@ -0,0 +1,373 @@
+/**
+ * Copyright (c) 2010 Vít Šesták
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package v6.java.preverifier;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Reader of a zip archive that parses the central directory itself. Unlike
+ * {@link java.util.zip.ZipFile}, it provides the location of the compressed
+ * data of the entries, so they can be copied into another archive without
+ * being inflated and deflated again, and it reads the contents of an entry
+ * directly into an exactly sized array, without any intermediate streams.
+ * <p>
+ * The archive is memory-mapped unless it is too large to be mapped as a
+ * single buffer. The reader can be used by several threads at once. ZIP64
+ * archives are not supported.
+ * </p>
+ *
+ * @see ZipArchiveWriter
+ */
+class ZipArchiveReader {
+
+    /** An entry as described by the central directory. */
+    static class Entry {
+        String name;
+        int flags;
+        int method;
+        long dosTime;
+        long crc;
+        long compressedSize;
+        long size;
+        long localHeaderOffset;
+
+        /**
+         * Return a boolean indicating whether the entry is encrypted.
+         *
+         * @return
+         */
+        boolean isEncrypted() {
+            return (flags & 1) != 0;
+        }
+    }
+
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int END_LENGTH = 22;
+    private static final int MAXIMUM_COMMENT_LENGTH = 0xFFFF;
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_LENGTH = 46;
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_LENGTH = 30;
+
+    private FileInputStream inputStream;
+    private FileChannel channel;
+    private ByteBuffer mappedArchive;
+    private List<Entry> entries;
+
+    /**
+     * Open the specified archive and read its central directory.
+     *
+     * @param archive
+     * @throws IOException
+     */
+    ZipArchiveReader(File archive) throws IOException {
+        inputStream = new FileInputStream(archive);
+        channel = inputStream.getChannel();
+
+        try {
+            long archiveSize = channel.size();
+            if (archiveSize <= Integer.MAX_VALUE) {
+                mappedArchive = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                        archiveSize);
+                mappedArchive.order(ByteOrder.LITTLE_ENDIAN);
+            }
+
+            readCentralDirectory();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Return the channel for reading the archive contents.
+     *
+     * @return
+     */
+    FileChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Return the entries in the order of the central directory.
+     *
+     * @return
+     */
+    List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Return the position of the compressed data of the specified entry.
+     *
+     * @param entry
+     * @return
+     * @throws IOException
+     */
+    long getDataOffset(Entry entry) throws IOException {
+        ByteBuffer header = read(entry.localHeaderOffset, LOCAL_LENGTH);
+        if (header.getInt(0) != LOCAL_SIGNATURE) {
+            throw new ZipException("Invalid local header of " + entry.name);
+        }
+
+        int nameLength = header.getShort(26) & 0xFFFF;
+        int extraLength = header.getShort(28) & 0xFFFF;
+
+        return entry.localHeaderOffset + LOCAL_LENGTH + nameLength
+                + extraLength;
+    }
+
+    /**
+     * Return a boolean indicating whether the contents of the specified entry
+     * can be read by {@link #readContents(Entry)}.
+     *
+     * @param entry
+     * @return
+     */
+    boolean isReadable(Entry entry) {
+        return !entry.isEncrypted()
+                && (entry.size <= Integer.MAX_VALUE)
+                && ((entry.method == ZipEntry.STORED) || (entry.method == ZipEntry.DEFLATED));
+    }
+
+    /**
+     * Return a boolean indicating whether the specified entry has the same
+     * uncompressed contents as the entry of another archive. The sizes and
+     * CRCs are compared first. If they match, the compressed data are
+     * compared if both entries are compressed the same way, otherwise the
+     * uncompressed contents are compared.
+     *
+     * @param entry
+     * @param otherReader
+     * @param otherEntry
+     * @return
+     * @throws IOException
+     */
+    boolean hasSameContents(Entry entry, ZipArchiveReader otherReader,
+            Entry otherEntry) throws IOException {
+        if ((entry.size != otherEntry.size) || (entry.crc != otherEntry.crc)
+                || !isReadable(entry) || !otherReader.isReadable(otherEntry)) {
+            return false;
+        }
+
+        if ((entry.method == otherEntry.method)
+                && (entry.compressedSize == otherEntry.compressedSize)
+                && (entry.compressedSize <= Integer.MAX_VALUE)) {
+            ByteBuffer data = read(getDataOffset(entry),
+                    (int) entry.compressedSize);
+            ByteBuffer otherData = otherReader.read(otherReader
+                    .getDataOffset(otherEntry), (int) otherEntry.compressedSize);
+            if (data.equals(otherData)) {
+                return true;
+            }
+        }
+
+        return Arrays.equals(readContents(entry), otherReader
+                .readContents(otherEntry));
+    }
+
+    /**
+     * Read the uncompressed contents of the specified entry.
+     *
+     * @param entry
+     * @return
+     * @throws IOException
+     */
+    byte[] readContents(Entry entry) throws IOException {
+        if (!isReadable(entry)) {
+            throw new ZipException("Unsupported entry " + entry.name);
+        }
+
+        byte[] contents = new byte[(int) entry.size];
+        ByteBuffer data = read(getDataOffset(entry),
+                (int) entry.compressedSize);
+
+        if (entry.method == ZipEntry.STORED) {
+            if (entry.compressedSize != entry.size) {
+                throw new ZipException("Invalid size of stored entry "
+                        + entry.name);
+            }
+            data.get(contents);
+        } else {
+            byte[] compressed;
+            if (data.hasArray()) {
+                compressed = data.array();
+            } else {
+                compressed = new byte[data.remaining()];
+                data.get(compressed);
+            }
+
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(compressed, 0, (int) entry.compressedSize);
+                int length = 0;
+                while (length < contents.length) {
+                    int inflated = inflater.inflate(contents, length,
+                            contents.length - length);
+                    if ((inflated == 0)
+                            && (inflater.finished() || inflater.needsInput())) {
+                        break;
+                    }
+                    length += inflated;
+                }
+
+                if (length != contents.length) {
+                    throw new ZipException("Invalid size of entry "
+                            + entry.name);
+                }
+            } catch (DataFormatException e) {
+                ZipException zipException = new ZipException(
+                        "Invalid compressed data of " + entry.name);
+                zipException.initCause(e);
+                throw zipException;
+            } finally {
+                inflater.end();
+            }
+        }
+
+        return contents;
+    }
+
+    /**
+     * Close the archive.
+     *
+     * @throws IOException
+     */
+    void close() throws IOException {
+        // The mapping itself is released once the buffer is garbage collected
+        mappedArchive = null;
+        inputStream.close();
+    }
+
+    /**
+     * Find the end of central directory record and read all the entries of
+     * the central directory.
+     *
+     * @throws IOException
+     */
+    private void readCentralDirectory() throws IOException {
+        long fileSize = channel.size();
+        int tailLength = (int) Math.min(fileSize, END_LENGTH
+                + MAXIMUM_COMMENT_LENGTH);
+        long tailOffset = fileSize - tailLength;
+        ByteBuffer tail = read(tailOffset, tailLength);
+
+        int endPosition = -1;
+        for (int i = tailLength - END_LENGTH; i >= 0; i--) {
+            if (tail.getInt(i) == END_SIGNATURE) {
+                endPosition = i;
+                break;
+            }
+        }
+
+        if (endPosition < 0) {
+            throw new ZipException("End of central directory not found");
+        }
+
+        int entryCount = tail.getShort(endPosition + 10) & 0xFFFF;
+        long directorySize = tail.getInt(endPosition + 12) & 0xFFFFFFFFL;
+        long directoryOffset = tail.getInt(endPosition + 16) & 0xFFFFFFFFL;
+        if ((entryCount == 0xFFFF) || (directorySize == 0xFFFFFFFFL)
+                || (directoryOffset == 0xFFFFFFFFL)) {
+            throw new ZipException("ZIP64 archives are not supported");
+        }
+
+        // Archives may be prefixed by other data (e.g. a launcher), so all
+        // the offsets are relative to the real start of the central directory
+        long directoryPosition = tailOffset + endPosition - directorySize;
+        long prefixLength = directoryPosition - directoryOffset;
+        if (prefixLength < 0) {
+            throw new ZipException("Invalid central directory offset");
+        }
+
+        ByteBuffer directory = read(directoryPosition, (int) directorySize);
+        entries = new ArrayList<Entry>(entryCount);
+
+        int position = 0;
+        for (int i = 0; i < entryCount; i++) {
+            if ((position + CENTRAL_LENGTH > directory.limit())
+                    || (directory.getInt(position) != CENTRAL_SIGNATURE)) {
+                throw new ZipException("Invalid central directory entry");
+            }
+
+            Entry entry = new Entry();
+            entry.flags = directory.getShort(position + 8) & 0xFFFF;
+            entry.method = directory.getShort(position + 10) & 0xFFFF;
+            entry.dosTime = directory.getInt(position + 12) & 0xFFFFFFFFL;
+            entry.crc = directory.getInt(position + 16) & 0xFFFFFFFFL;
+            entry.compressedSize = directory.getInt(position + 20) & 0xFFFFFFFFL;
+            entry.size = directory.getInt(position + 24) & 0xFFFFFFFFL;
+            int nameLength = directory.getShort(position + 28) & 0xFFFF;
+            int extraLength = directory.getShort(position + 30) & 0xFFFF;
+            int commentLength = directory.getShort(position + 32) & 0xFFFF;
+            entry.localHeaderOffset = (directory.getInt(position + 42) & 0xFFFFFFFFL)
+                    + prefixLength;
+
+            byte[] name = new byte[nameLength];
+            directory.position(position + CENTRAL_LENGTH);
+            directory.get(name);
+            entry.name = new String(name, "UTF-8");
+
+            entries.add(entry);
+            position += CENTRAL_LENGTH + nameLength + extraLength
+                    + commentLength;
+        }
+    }
+
+    /**
+     * Read the specified part of the archive. The returned buffer is a view
+     * of the mapped archive if available.
+     *
+     * @param offset
+     * @param length
+     * @return
+     * @throws IOException
+     */
+    private ByteBuffer read(long offset, int length) throws IOException {
+        if (mappedArchive != null) {
+            if ((offset < 0) || (offset + length > mappedArchive.capacity())) {
+                throw new EOFException("Unexpected end of archive");
+            }
+
+            ByteBuffer buffer = mappedArchive.duplicate();
+            buffer.position((int) offset);
+            buffer.limit((int) offset + length);
+            buffer = buffer.slice();
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+            return buffer;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        while (buffer.hasRemaining()) {
+            int bytesRead = channel.read(buffer, offset + buffer.position());
+            if (bytesRead < 0) {
+                throw new EOFException("Unexpected end of archive");
+            }
+        }
+
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,513 @@
+/**
+ * Copyright (c) 2010 Vít Šesták
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package v6.java.preverifier;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Writer of zip archives. In addition to what
+ * {@link java.util.zip.ZipOutputStream} does, it is able to copy an entry
+ * from another archive as the already compressed data, using
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}
+ * when writing into a file. The compression of the entries and their times
+ * are controlled by the {@link ArchiveOutputOptions}.
+ * <p>
+ * ZIP64 archives are not supported.
+ * </p>
+ *
+ * @see ZipArchiveReader
+ */
+class ZipArchiveWriter {
+
+    /** The information about a written entry needed by the central directory. */
+    private static class WrittenEntry {
+        byte[] name;
+        byte[] comment;
+        int flags;
+        int method;
+        long dosTime;
+        long crc;
+        long compressedSize;
+        long size;
+        long localHeaderOffset;
+    }
+
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+    private static final int DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+
+    private static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+    private static final int FLAG_UTF8 = 1 << 11;
+
+    private static final int VERSION_STORED = 10;
+    private static final int VERSION_DEFLATED = 20;
+
+    private static final long MAXIMUM_SIZE = 0xFFFFFFFFL;
+    private static final int MAXIMUM_ENTRIES = 0xFFFF;
+
+    private ArchiveOutputOptions options;
+    private OutputStream outputStream;
+    private FileChannel outputChannel;
+    private long position;
+    private Deflater deflater;
+    private CRC32 crc;
+    private byte[] buffer;
+    private List<WrittenEntry> writtenEntries;
+
+    /**
+     * Construct a writer writing into the specified file stream. The
+     * compressed entries copied from other archives are transferred directly
+     * between the file channels.
+     *
+     * @param outputStream
+     * @param options
+     */
+    ZipArchiveWriter(FileOutputStream outputStream,
+            ArchiveOutputOptions options) {
+        this((OutputStream) outputStream, options);
+        outputChannel = outputStream.getChannel();
+    }
+
+    /**
+     * Construct a writer writing into the specified stream.
+     *
+     * @param outputStream
+     * @param options
+     */
+    ZipArchiveWriter(OutputStream outputStream, ArchiveOutputOptions options) {
+        this.options = options;
+        this.outputStream = new BufferedOutputStream(outputStream);
+
+        deflater = new Deflater(options.getCompressionLevel(), true);
+        crc = new CRC32();
+        buffer = new byte[8192];
+        writtenEntries = new ArrayList<WrittenEntry>();
+    }
+
+    /**
+     * Return a boolean indicating whether the already compressed data of the
+     * specified entry of another archive can be copied as they are, i.e.
+     * whether they are compressed the way the options require.
+     *
+     * @param entry
+     * @param sourceEntry
+     * @return
+     */
+    boolean canWriteRawEntry(ZipEntry entry,
+            ZipArchiveReader.Entry sourceEntry) {
+        int method = options.getMethod(entry.getName());
+
+        return (sourceEntry.method == method)
+                && ((method == ZipEntry.STORED) || (options
+                        .getCompressionLevel() == Deflater.DEFAULT_COMPRESSION));
+    }
+
+    /**
+     * Write an entry with the specified contents, compressed as the options
+     * require.
+     *
+     * @param entry
+     * @param contents
+     * @throws IOException
+     */
+    void writeEntry(ZipEntry entry, byte[] contents) throws IOException {
+        crc.reset();
+        crc.update(contents);
+
+        if (options.getMethod(entry.getName()) == ZipEntry.STORED) {
+            WrittenEntry writtenEntry = newWrittenEntry(entry,
+                    ZipEntry.STORED, 0);
+            writtenEntry.crc = crc.getValue();
+            writtenEntry.compressedSize = contents.length;
+            writtenEntry.size = contents.length;
+
+            writeLocalHeader(writtenEntry);
+            writeBytes(contents);
+            return;
+        }
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(
+                contents.length / 2 + 64);
+        deflater.reset();
+        deflater.setInput(contents);
+        deflater.finish();
+        while (!deflater.finished()) {
+            int length = deflater.deflate(buffer);
+            compressed.write(buffer, 0, length);
+        }
+
+        WrittenEntry writtenEntry = newWrittenEntry(entry, ZipEntry.DEFLATED,
+                0);
+        writtenEntry.crc = crc.getValue();
+        writtenEntry.compressedSize = compressed.size();
+        writtenEntry.size = contents.length;
+
+        writeLocalHeader(writtenEntry);
+        compressed.writeTo(outputStream);
+        position += writtenEntry.compressedSize;
+    }
+
+    /**
+     * Write an entry with the contents read from the specified stream. As the
+     * size of the contents is not known in advance, the size of a deflated
+     * entry is stored in the data descriptor following the data. The contents
+     * of a stored entry are read into memory first, as a stored entry must
+     * have its size in the local header.
+     *
+     * @param entry
+     * @param contents
+     * @throws IOException
+     */
+    void writeEntry(ZipEntry entry, InputStream contents) throws IOException {
+        if (options.getMethod(entry.getName()) == ZipEntry.STORED) {
+            ByteArrayOutputStream storedContents = new ByteArrayOutputStream(
+                    (entry.getSize() > 0) ? (int) entry.getSize()
+                            : buffer.length);
+            int bytesRead;
+            while ((bytesRead = contents.read(buffer)) != -1) {
+                storedContents.write(buffer, 0, bytesRead);
+            }
+
+            writeEntry(entry, storedContents.toByteArray());
+            return;
+        }
+
+        WrittenEntry writtenEntry = newWrittenEntry(entry, ZipEntry.DEFLATED,
+                FLAG_DATA_DESCRIPTOR);
+        writeLocalHeader(writtenEntry);
+
+        crc.reset();
+        deflater.reset();
+        byte[] input = new byte[buffer.length];
+        int bytesRead;
+        while ((bytesRead = contents.read(input)) != -1) {
+            crc.update(input, 0, bytesRead);
+            deflater.setInput(input, 0, bytesRead);
+            while (!deflater.needsInput()) {
+                writeDeflated();
+            }
+        }
+
+        deflater.finish();
+        while (!deflater.finished()) {
+            writeDeflated();
+        }
+
+        writtenEntry.crc = crc.getValue();
+        writtenEntry.compressedSize = deflater.getBytesWritten();
+        writtenEntry.size = deflater.getBytesRead();
+        checkSizes(writtenEntry);
+
+        writeInt(DESCRIPTOR_SIGNATURE);
+        writeInt(writtenEntry.crc);
+        writeInt(writtenEntry.compressedSize);
+        writeInt(writtenEntry.size);
+    }
+
+    /**
+     * Copy the already compressed data of an entry from another archive. The
+     * data should be checked by {@link #canWriteRawEntry(ZipEntry, ZipArchiveReader.Entry)}
+     * first.
+     *
+     * @param entry
+     * @param source
+     * @param sourceEntry the description of the entry in the source archive
+     * @throws IOException
+     */
+    void writeRawEntry(ZipEntry entry, ZipArchiveReader source,
+            ZipArchiveReader.Entry sourceEntry) throws IOException {
+        WrittenEntry writtenEntry = newWrittenEntry(entry, sourceEntry.method,
+                0);
+        writtenEntry.crc = sourceEntry.crc;
+        writtenEntry.compressedSize = sourceEntry.compressedSize;
+        writtenEntry.size = sourceEntry.size;
+        writeLocalHeader(writtenEntry);
+
+        FileChannel sourceChannel = source.getChannel();
+        long dataOffset = source.getDataOffset(sourceEntry);
+        long remaining = sourceEntry.compressedSize;
+
+        if (outputChannel != null) {
+            outputStream.flush();
+            while (remaining > 0) {
+                long transferred = sourceChannel.transferTo(dataOffset
+                        + sourceEntry.compressedSize - remaining, remaining,
+                        outputChannel);
+                if (transferred <= 0) {
+                    throw new ZipException("Unable to copy "
+                            + sourceEntry.name);
+                }
+                remaining -= transferred;
+            }
+        } else {
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+            while (remaining > 0) {
+                byteBuffer.clear();
+                if (remaining < buffer.length) {
+                    byteBuffer.limit((int) remaining);
+                }
+
+                int bytesRead = sourceChannel.read(byteBuffer, dataOffset
+                        + sourceEntry.compressedSize - remaining);
+                if (bytesRead < 0) {
+                    throw new ZipException("Unable to copy "
+                            + sourceEntry.name);
+                }
+                outputStream.write(buffer, 0, bytesRead);
+                remaining -= bytesRead;
+            }
+        }
+
+        position += sourceEntry.compressedSize;
+    }
+
+    /**
+     * Write the central directory, finishing the archive. The underlying
+     * stream is flushed, but not closed.
+     *
+     * @throws IOException
+     */
+    void finish() throws IOException {
+        if (writtenEntries.size() > MAXIMUM_ENTRIES) {
+            throw new ZipException("Too many entries for a zip archive");
+        }
+
+        long directoryOffset = position;
+        for (WrittenEntry writtenEntry : writtenEntries) {
+            writeInt(CENTRAL_SIGNATURE);
+            writeShort(VERSION_DEFLATED);
+            writeShort(getVersionNeeded(writtenEntry));
+            writeShort(writtenEntry.flags);
+            writeShort(writtenEntry.method);
+            writeInt(writtenEntry.dosTime);
+            writeInt(writtenEntry.crc);
+            writeInt(writtenEntry.compressedSize);
+            writeInt(writtenEntry.size);
+            writeShort(writtenEntry.name.length);
+            writeShort(0);
+            writeShort(writtenEntry.comment.length);
+            writeShort(0);
+            writeShort(0);
+            writeInt(0);
+            writeInt(writtenEntry.localHeaderOffset);
+            writeBytes(writtenEntry.name);
+            writeBytes(writtenEntry.comment);
+        }
+        long directorySize = position - directoryOffset;
+        checkOffset(position);
+
+        writeInt(END_SIGNATURE);
+        writeShort(0);
+        writeShort(0);
+        writeShort(writtenEntries.size());
+        writeShort(writtenEntries.size());
+        writeInt(directorySize);
+        writeInt(directoryOffset);
+        writeShort(0);
+
+        outputStream.flush();
+        deflater.end();
+    }
+
+    /**
+     * Finish the archive and close the underlying stream.
+     *
+     * @throws IOException
+     */
+    void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    /**
+     * Check that the specified offset is representable without ZIP64.
+     *
+     * @param offset
+     * @throws ZipException
+     */
+    private void checkOffset(long offset) throws ZipException {
+        if (offset > MAXIMUM_SIZE) {
+            throw new ZipException("Archive too large for a zip archive");
+        }
+    }
+
+    /**
+     * Check that the sizes of the entry are representable without ZIP64.
+     *
+     * @param writtenEntry
+     * @throws IOException
+     */
+    private void checkSizes(WrittenEntry writtenEntry) throws IOException {
+        if ((writtenEntry.compressedSize > MAXIMUM_SIZE)
+                || (writtenEntry.size > MAXIMUM_SIZE)) {
+            throw new ZipException("Entry too large for a zip archive: "
+                    + new String(writtenEntry.name, "UTF-8"));
+        }
+    }
+
+    /**
+     * Return the zip specification version needed to extract the entry.
+     *
+     * @param writtenEntry
+     * @return
+     */
+    private int getVersionNeeded(WrittenEntry writtenEntry) {
+        return (writtenEntry.method == ZipEntry.STORED) ? VERSION_STORED
+                : VERSION_DEFLATED;
+    }
+
+    /**
+     * Create the record of an entry written at the current position.
+     *
+     * @param entry
+     * @param method
+     * @param flags
+     * @return
+     * @throws IOException
+     */
+    private WrittenEntry newWrittenEntry(ZipEntry entry, int method, int flags)
+            throws IOException {
+        checkOffset(position);
+
+        WrittenEntry writtenEntry = new WrittenEntry();
+        writtenEntry.name = entry.getName().getBytes("UTF-8");
+        writtenEntry.comment = (entry.getComment() == null) ? new byte[0]
+                : entry.getComment().getBytes("UTF-8");
+        writtenEntry.flags = flags;
+        if (writtenEntry.name.length != entry.getName().length()) {
+            writtenEntry.flags |= FLAG_UTF8;
+        }
+        writtenEntry.method = method;
+        writtenEntry.dosTime = toDosTime(entry.getTime());
+        writtenEntry.localHeaderOffset = position;
+
+        writtenEntries.add(writtenEntry);
+        return writtenEntry;
+    }
+
+    /**
+     * Convert the Java time into the MS-DOS date and time. The fixed time of
+     * the options is used instead if set.
+     *
+     * @param time
+     * @return
+     */
+    private long toDosTime(long time) {
+        Calendar calendar;
+        if (options.getFixedTime() != ArchiveOutputOptions.NO_FIXED_TIME) {
+            calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+            calendar.setTimeInMillis(options.getFixedTime());
+        } else {
+            calendar = Calendar.getInstance();
+            calendar.setTimeInMillis((time == -1) ? System
+                    .currentTimeMillis() : time);
+        }
+
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+
+        return ((year - 1980) << 25)
+                | ((calendar.get(Calendar.MONTH) + 1) << 21)
+                | (calendar.get(Calendar.DAY_OF_MONTH) << 16)
+                | (calendar.get(Calendar.HOUR_OF_DAY) << 11)
+                | (calendar.get(Calendar.MINUTE) << 5)
+                | (calendar.get(Calendar.SECOND) >> 1);
+    }
+
+    /**
+     * Write the data produced by the deflater.
+     *
+     * @throws IOException
+     */
+    private void writeDeflated() throws IOException {
+        int length = deflater.deflate(buffer);
+        outputStream.write(buffer, 0, length);
+        position += length;
+    }
+
+    /**
+     * Write the local header of the specified entry.
+     *
+     * @param writtenEntry
+     * @throws IOException
+     */
+    private void writeLocalHeader(WrittenEntry writtenEntry) throws IOException {
+        checkSizes(writtenEntry);
+
+        writeInt(LOCAL_SIGNATURE);
+        writeShort(getVersionNeeded(writtenEntry));
+        writeShort(writtenEntry.flags);
+        writeShort(writtenEntry.method);
+        writeInt(writtenEntry.dosTime);
+        writeInt(writtenEntry.crc);
+        writeInt(writtenEntry.compressedSize);
+        writeInt(writtenEntry.size);
+        writeShort(writtenEntry.name.length);
+        writeShort(0);
+        writeBytes(writtenEntry.name);
+    }
+
+    /**
+     * Write the specified bytes.
+     *
+     * @param bytes
+     * @throws IOException
+     */
+    private void writeBytes(byte[] bytes) throws IOException {
+        outputStream.write(bytes);
+        position += bytes.length;
+    }
+
+    /**
+     * Write the specified value as a little-endian 32-bit integer.
+     *
+     * @param value
+     * @throws IOException
+     */
+    private void writeInt(long value) throws IOException {
+        outputStream.write((int) (value & 0xFF));
+        outputStream.write((int) ((value >>> 8) & 0xFF));
+        outputStream.write((int) ((value >>> 16) & 0xFF));
+        outputStream.write((int) ((value >>> 24) & 0xFF));
+        position += 4;
+    }
+
+    /**
+     * Write the specified value as a little-endian 16-bit integer.
+     *
+     * @param value
+     * @throws IOException
+     */
+    private void writeShort(int value) throws IOException {
+        outputStream.write(value & 0xFF);
+        outputStream.write((value >>> 8) & 0xFF);
+        position += 2;
+    }
+}
@@ -18,6 +18,7 @@ package v6.java.preverifier.results;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 
+import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.tree.ClassNode;
 import org.objectweb.asm.util.TraceClassVisitor;
 
@@ -59,9 +60,19 @@ public class PreverificationResults {
     }
 
     /**
+     * Return the preverified class node. If the results were created without
+     * it, the node is read from the preverified class bytes when first
+     * asked for.
+     * 
      * @return Returns the preverifiedClassNode.
      */
-    public ClassNode getPreverifiedClassNode() {
+    public synchronized ClassNode getPreverifiedClassNode() {
+        if ((preverifiedClassNode == null) && (preverifiedClassBytes != null)) {
+            ClassNode classNode = new ClassNode();
+            new ClassReader(preverifiedClassBytes).accept(classNode, 0);
+            preverifiedClassNode = classNode;
+        }
+
         return preverifiedClassNode;
     }
 
@@ -78,7 +89,7 @@ public class PreverificationResults {
             StringWriter stringWriter = new StringWriter();
             PrintWriter printWriter = new PrintWriter(stringWriter);
             TraceClassVisitor traceVisitor = new TraceClassVisitor(printWriter);
-            preverifiedClassNode.accept(traceVisitor);
+            getPreverifiedClassNode().accept(traceVisitor);
             printWriter.close();
             traceOutput = stringWriter.toString();
         }